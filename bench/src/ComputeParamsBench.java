@@ -0,0 +1,132 @@
+package nz.gen.geek_central.screencalc;
+/*
+    JMH benchmarks of Rules.ComputeParams, for each of the combinations
+    of inputs listed in the README as being sufficient.
+
+    Copyright 2014 Lawrence D'Oliveiro <ldo@geek-central.gen.nz>.
+
+    This program is free software: you can redistribute it and/or
+    modify it under the terms of the GNU General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+    General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import static nz.gen.geek_central.screencalc.Rules.FieldName;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ComputeParamsBench
+  {
+
+    @Param
+      (
+        {
+          /* any 2 of (aspect, diagonal, height, width) plus any 1 of (density, heightpx, widthpx) */
+            "aspect,diagonal,density", "aspect,diagonal,heightpx", "aspect,diagonal,widthpx",
+            "aspect,height,density", "aspect,height,heightpx", "aspect,height,widthpx",
+            "aspect,width,density", "aspect,width,heightpx", "aspect,width,widthpx",
+            "diagonal,height,density", "diagonal,height,heightpx", "diagonal,height,widthpx",
+            "diagonal,width,density", "diagonal,width,heightpx", "diagonal,width,widthpx",
+            "height,width,density", "height,width,heightpx", "height,width,widthpx",
+          /* aspect + density + (heightpx or widthpx) */
+            "aspect,density,heightpx", "aspect,density,widthpx",
+          /* all 3 of (density, heightpx, widthpx) */
+            "density,heightpx,widthpx",
+        }
+      )
+    public String Inputs;
+
+    final Rules TheRules = new Rules();
+    final ScreenParams Params = new ScreenParams();
+    final double[] InputValues = new double[RuleGraph.NrFields];
+    int InputMask;
+    final java.util.HashMap<FieldName, Double> InputMap = new java.util.HashMap<FieldName, Double>();
+    IntervalSolver Intervals;
+    final IntervalParams IntervalParams = new IntervalParams();
+
+    @Setup
+    public void Setup()
+      {
+      /* work out a consistent set of values for a 15.6-inch 1920×1080 screen */
+        final ScreenParams Full = new ScreenParams();
+        Full.Set(FieldName.DiagMeasure, 15.6 * Rules.cm_per_in);
+        Full.Set(FieldName.WidthPixels, 1920);
+        Full.Set(FieldName.HeightPixels, 1080);
+        Full.Set(FieldName.AspectRatio, 1080.0 / 1920.0);
+        TheRules.ComputeParams(Full);
+        InputMask = 0;
+        for (String Name : Inputs.split(","))
+          {
+            FieldName Field = null;
+            for (FieldName ThisField : FieldName.values())
+              {
+                if (ThisField.Name.equals(Name))
+                  {
+                    Field = ThisField;
+                    break;
+                  } /*if*/
+              } /*for*/
+            InputMask |= 1 << Field.ordinal();
+            InputValues[Field.ordinal()] = Full.Get(Field);
+            InputMap.put(Field, Full.Get(Field));
+          } /*for*/
+        Params.Known = InputMask;
+        System.arraycopy(InputValues, 0, Params.Values, 0, InputValues.length);
+        if (TheRules.ComputeParams(Params) != Rules.ComputeStatus.COMPUTE_DONE)
+          {
+            throw new RuntimeException("inputs “" + Inputs + "” are not sufficient");
+          } /*if*/
+        Intervals = new IntervalSolver(TheRules.Graph);
+      } /*Setup*/
+
+    @Benchmark
+    public double ComputeScreenParams()
+      {
+        Params.Known = InputMask;
+        System.arraycopy(InputValues, 0, Params.Values, 0, InputValues.length);
+        TheRules.ComputeParams(Params);
+        return
+            Params.Values[FieldName.TotalPixels.ordinal()];
+      } /*ComputeScreenParams*/
+
+    @Benchmark
+    public Object ComputeMap()
+      {
+        final java.util.HashMap<FieldName, Double> Params = new java.util.HashMap<FieldName, Double>(InputMap);
+        TheRules.ComputeParams(Params, null);
+        return
+            Params;
+      } /*ComputeMap*/
+
+    @Benchmark
+    public double ComputeIntervals()
+      /* same inputs as ComputeScreenParams, each give or take 0.05% */
+      {
+        final IntervalParams Params = IntervalParams;
+        Params.Known = InputMask;
+        for (int i = 0; i < InputValues.length; ++i)
+          {
+            Params.Lo[i] = InputValues[i] * 0.9995;
+            Params.Hi[i] = InputValues[i] * 1.0005;
+          } /*for*/
+        Intervals.Solve(Params);
+        return
+            Params.Hi[FieldName.TotalPixels.ordinal()];
+      } /*ComputeIntervals*/
+
+  } /*ComputeParamsBench*/;
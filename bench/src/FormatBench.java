@@ -0,0 +1,106 @@
+package nz.gen.geek_central.screencalc;
+/*
+    JMH benchmarks of Rules.FormatField and FieldFormatter, and of the
+    fraction approximation used for formatting aspect ratios.
+
+    Copyright 2014 Lawrence D'Oliveiro <ldo@geek-central.gen.nz>.
+
+    This program is free software: you can redistribute it and/or
+    modify it under the terms of the GNU General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+    General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import static nz.gen.geek_central.screencalc.Rules.FieldName;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FormatBench
+  {
+
+    @Param({"1.7777777777777777", "1.6", "1.7", "0.4285"})
+    public double Ratio;
+
+    final Rules TheRules = new Rules();
+    final Rules FastRules = new Rules(NumberUseful.FractionTable.Common, false);
+    final FieldFormatter Formatter = new FieldFormatter(TheRules);
+    final StringBuilder Out = new StringBuilder();
+
+    @Benchmark
+    public Object FromReal()
+      {
+        return
+            NumberUseful.Fraction.FromReal(Ratio);
+      } /*FromReal*/
+
+    @Benchmark
+    public Object FromRealSimplest()
+      {
+        return
+            NumberUseful.Fraction.FromRealSimplest(Ratio);
+      } /*FromRealSimplest*/
+
+    @Benchmark
+    public String FormatRatio()
+      {
+        return
+            TheRules.FormatField(FieldName.AspectRatio, Ratio, Rules.Units.UNITS_CM);
+      } /*FormatRatio*/
+
+    @Benchmark
+    public String FormatRatioFast()
+      {
+        return
+            FastRules.FormatField(FieldName.AspectRatio, Ratio, Rules.Units.UNITS_CM);
+      } /*FormatRatioFast*/
+
+    @Benchmark
+    public String FormatDistance()
+      {
+        return
+            TheRules.FormatField(FieldName.DiagMeasure, Ratio * 22.5, Rules.Units.UNITS_IN);
+      } /*FormatDistance*/
+
+    @Benchmark
+    public String FormatDensity()
+      {
+        return
+            TheRules.FormatField(FieldName.PixelDensity, Ratio * 55.3, Rules.Units.UNITS_IN);
+      } /*FormatDensity*/
+
+    @Benchmark
+    public String FormatPixels()
+      {
+        return
+            TheRules.FormatField(FieldName.WidthPixels, Ratio * 1080, Rules.Units.UNITS_CM);
+      } /*FormatPixels*/
+
+    @Benchmark
+    public int AppendRow()
+      /* formats a whole row of fields into a reused buffer, as for export. */
+      {
+        Out.setLength(0);
+        Formatter.Format(FieldName.DiagMeasure, Ratio * 22.5, Rules.Units.UNITS_IN, Out);
+        Formatter.Format(FieldName.PixelDensity, Ratio * 55.3, Rules.Units.UNITS_IN, Out);
+        Formatter.Format(FieldName.WidthPixels, Ratio * 1080, Rules.Units.UNITS_CM, Out);
+        Formatter.Format(FieldName.AspectRatio, Ratio, Rules.Units.UNITS_CM, Out);
+        return
+            Out.length();
+      } /*AppendRow*/
+
+  } /*FormatBench*/;
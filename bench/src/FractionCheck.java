@@ -0,0 +1,125 @@
+package nz.gen.geek_central.screencalc;
+/*
+    Property check of NumberUseful.Fraction.FromRealSimplest against FromReal
+    across the range of plausible aspect ratios. After building the
+    benchmarks jar, run with
+
+        java -cp target/benchmarks.jar nz.gen.geek_central.screencalc.FractionCheck
+
+    Exits with a nonzero status if any property fails.
+
+    Copyright 2014 Lawrence D'Oliveiro <ldo@geek-central.gen.nz>.
+
+    This program is free software: you can redistribute it and/or
+    modify it under the terms of the GNU General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+    General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+*/
+
+import static nz.gen.geek_central.screencalc.NumberUseful.Fraction;
+
+public class FractionCheck
+  {
+
+    static int Failures = 0;
+
+    static void Fail
+      (
+        String Why,
+        double Val,
+        Fraction Simplest,
+        Fraction Default
+      )
+      {
+        if (Failures < 20)
+          {
+            System.err.printf("%s for %.17g: FromRealSimplest %s, FromReal %s\n", Why, Val, Simplest, Default);
+          } /*if*/
+        ++Failures;
+      } /*Fail*/
+
+    static void Check
+      (
+        double Val,
+        boolean MustMatch
+      )
+      {
+        final Fraction Simplest = Fraction.FromRealSimplest(Val);
+        final Fraction Default = Fraction.FromReal(Val);
+        if (!Fraction.WithinTolerance(Simplest.Numer, Simplest.Denom, Val))
+          {
+            Fail("FromRealSimplest out of tolerance", Val, Simplest, Default);
+          } /*if*/
+        if (Simplest.Denom > Default.Denom)
+          {
+            Fail("FromRealSimplest denominator larger", Val, Simplest, Default);
+          } /*if*/
+        for (int Denom = 1; Denom < Simplest.Denom; ++Denom)
+          {
+            final long Numer = Math.round(Val * Denom);
+            for (long n = Math.max(Numer - 1, 1); n <= Numer + 1; ++n)
+              {
+                if (Fraction.WithinTolerance(n, Denom, Val))
+                  {
+                    Fail(String.format("FromRealSimplest missed %d:%d", n, Denom), Val, Simplest, Default);
+                  } /*if*/
+              } /*for*/
+          } /*for*/
+        if (MustMatch && (Simplest.Numer != Default.Numer || Simplest.Denom != Default.Denom))
+          {
+            Fail("results differ", Val, Simplest, Default);
+          } /*if*/
+      } /*Check*/
+
+    public static void main
+      (
+        String[] Args
+      )
+      {
+        final double Lowest = 9.0 / 16 * 0.9, Highest = 16.0 / 9 * 1.1;
+        int Checked = 0, Different = 0;
+        for (Fraction Exact : NumberUseful.FractionTable.Common.GetEntries())
+          {
+            Check(Exact.ToReal(), true);
+            ++Checked;
+          } /*for*/
+        for (double Val = Lowest; Val <= Highest; Val += 1.0e-4)
+          {
+            Check(Val, false);
+            final Fraction Simplest = Fraction.FromRealSimplest(Val);
+            final Fraction Default = Fraction.FromReal(Val);
+            if (Simplest.Numer != Default.Numer || Simplest.Denom != Default.Denom)
+              {
+                ++Different;
+              } /*if*/
+            ++Checked;
+          } /*for*/
+        final java.util.Random Random = new java.util.Random(Args.length > 0 ? Long.parseLong(Args[0]) : 1);
+        for (int i = 0; i < 100000; ++i)
+          {
+            Check(Lowest + Random.nextDouble() * (Highest - Lowest), false);
+            ++Checked;
+          } /*for*/
+        System.out.printf
+          (
+            "%d values checked, %d failures; on the regular grid, %d results had a smaller denominator than FromReal\n",
+            Checked,
+            Failures,
+            Different
+          );
+        if (Failures != 0)
+          {
+            System.exit(1);
+          } /*if*/
+      } /*main*/
+
+  } /*FractionCheck*/;
@@ -0,0 +1,143 @@
+package nz.gen.geek_central.screencalc;
+/*
+    JMH benchmarks of parsing field values: Rules.ParseMeasure compared
+    against the regular-expression version it replaced, and ParseRatio
+    with and without a hit in the table of common ratios.
+
+    Copyright 2014 Lawrence D'Oliveiro <ldo@geek-central.gen.nz>.
+
+    This program is free software: you can redistribute it and/or
+    modify it under the terms of the GNU General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+    General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import static nz.gen.geek_central.screencalc.Rules.FieldName;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBench
+  {
+
+    static class RegexParseDistance
+      {
+      /* how ParseMeasure used to work */
+        private final java.util.Map<String, Double> AcceptableUnits =
+            new java.util.HashMap<String, Double>();
+
+        public RegexParseDistance()
+          {
+            AcceptableUnits.put("cm", 1.0);
+            AcceptableUnits.put("mm", 0.1);
+            AcceptableUnits.put("in", Rules.cm_per_in);
+          } /*RegexParseDistance*/
+
+        public double Parse
+          (
+            String s,
+            Rules.Units CurUnits
+          )
+          {
+            s = s.toLowerCase();
+            final java.util.regex.Matcher MeasureMatch =
+                java.util.regex.Pattern.compile("^(\\d+(?:\\.\\d*)?|\\.\\d+)", 0).matcher(s);
+            if (!MeasureMatch.find())
+              {
+                throw new NumberFormatException("invalid measure");
+              } /*if*/
+            final String Units = s.substring(MeasureMatch.end(1));
+            final Double Multiplier =
+                AcceptableUnits.get
+                  (
+                    Units.length() != 0 ?
+                        Units
+                    : CurUnits == Rules.Units.UNITS_CM ?
+                        "cm"
+                    :
+                        "in"
+                  );
+            if (Multiplier == null)
+              {
+                throw new NumberFormatException(String.format("unrecognized units “%s”", Units));
+              } /*if*/
+            return
+                Double.parseDouble(MeasureMatch.group(1)) * Multiplier;
+          } /*Parse*/
+
+      } /*RegexParseDistance*/;
+
+    @State(Scope.Thread)
+    public static class MeasureState
+      {
+        @Param({"15.6", "39.6cm", "6.1IN", "396mm"})
+        public String Measure;
+
+        final RegexParseDistance OldParser = new RegexParseDistance();
+        final Rules.ParseMeasure NewParser = new Rules.ParseDistance();
+
+        @Setup
+        public void Setup()
+          {
+            if (OldParser.Parse(Measure, Rules.Units.UNITS_IN) != NewParser.Parse(Measure, Rules.Units.UNITS_IN))
+              {
+                throw new RuntimeException("parsers disagree on “" + Measure + "”");
+              } /*if*/
+          } /*Setup*/
+
+      } /*MeasureState*/;
+
+    @State(Scope.Thread)
+    public static class RatioState
+      {
+        @Param({"16:9", "1.85", "21:9"})
+        public String Ratio;
+
+        final Rules.Parser RatioParser = new Rules().ParamDefs.get(FieldName.AspectRatio).Parse;
+
+      } /*RatioState*/;
+
+    @Benchmark
+    public double ParseMeasureRegex
+      (
+        MeasureState State
+      )
+      {
+        return
+            State.OldParser.Parse(State.Measure, Rules.Units.UNITS_IN);
+      } /*ParseMeasureRegex*/
+
+    @Benchmark
+    public double ParseMeasure
+      (
+        MeasureState State
+      )
+      {
+        return
+            State.NewParser.Parse(State.Measure, Rules.Units.UNITS_IN);
+      } /*ParseMeasure*/
+
+    @Benchmark
+    public double ParseRatio
+      (
+        RatioState State
+      )
+      {
+        return
+            State.RatioParser.Parse(State.Ratio, Rules.Units.UNITS_CM);
+      } /*ParseRatio*/
+
+  } /*ParseBench*/;
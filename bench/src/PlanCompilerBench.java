@@ -0,0 +1,109 @@
+package nz.gen.geek_central.screencalc;
+/*
+    JMH benchmarks of solving through generated PlanCompiler kernels,
+    compared with RuleGraph.Solve, with all the sufficient combinations
+    of three inputs mixed together in the one run, so the rule calls in
+    RuleGraph.Solve see every rule function.
+
+    Copyright 2014 Lawrence D'Oliveiro <ldo@geek-central.gen.nz>.
+
+    This program is free software: you can redistribute it and/or
+    modify it under the terms of the GNU General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+    General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import static nz.gen.geek_central.screencalc.Rules.FieldName;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PlanCompilerBench
+  {
+
+    final Rules TheRules = new Rules();
+    final PlanCompiler Compiler = new PlanCompiler(TheRules.Graph);
+    final ScreenParams Params = new ScreenParams();
+    final double[] FullValues = new double[RuleGraph.NrFields];
+    int[] Masks;
+
+    @Setup
+    public void Setup()
+      {
+      /* a consistent set of values for a 15.6-inch 1920×1080 screen */
+        final ScreenParams Full = new ScreenParams();
+        Full.Set(FieldName.DiagMeasure, 15.6 * Rules.cm_per_in);
+        Full.Set(FieldName.WidthPixels, 1920);
+        Full.Set(FieldName.HeightPixels, 1080);
+        Full.Set(FieldName.AspectRatio, 1080.0 / 1920.0);
+        TheRules.ComputeParams(Full);
+        System.arraycopy(Full.Values, 0, FullValues, 0, FullValues.length);
+      /* every combination of three fields that determines all the rest */
+        final java.util.ArrayList<Integer> Sufficient = new java.util.ArrayList<Integer>();
+        for (int Mask = 0; Mask <= RuleGraph.AllFields; ++Mask)
+          {
+            if
+              (
+                    Integer.bitCount(Mask) == 3
+                &&
+                    TheRules.Graph.GetPlan(Mask).Status() == Rules.ComputeStatus.COMPUTE_DONE
+              )
+              {
+                Sufficient.add(Mask);
+                Compiler.GetKernel(Mask);
+              } /*if*/
+          } /*for*/
+        Masks = new int[Sufficient.size()];
+        for (int i = 0; i < Masks.length; ++i)
+          {
+            Masks[i] = Sufficient.get(i);
+          } /*for*/
+      } /*Setup*/
+
+    @Benchmark
+    @OperationsPerInvocation(64)
+    public double Interpreted()
+      {
+        double Total = 0.0;
+        for (int i = 0; i < 64; ++i)
+          {
+            Params.Known = Masks[i % Masks.length];
+            System.arraycopy(FullValues, 0, Params.Values, 0, FullValues.length);
+            TheRules.Graph.Solve(Params);
+            Total += Params.Values[FieldName.ViewingDistance.ordinal()];
+          } /*for*/
+        return
+            Total;
+      } /*Interpreted*/
+
+    @Benchmark
+    @OperationsPerInvocation(64)
+    public double Compiled()
+      {
+        double Total = 0.0;
+        for (int i = 0; i < 64; ++i)
+          {
+            Params.Known = Masks[i % Masks.length];
+            System.arraycopy(FullValues, 0, Params.Values, 0, FullValues.length);
+            Compiler.Solve(Params);
+            Total += Params.Values[FieldName.ViewingDistance.ordinal()];
+          } /*for*/
+        return
+            Total;
+      } /*Compiled*/
+
+  } /*PlanCompilerBench*/;
@@ -0,0 +1,60 @@
+package nz.gen.geek_central.screencalc;
+/*
+    Entry point for the benchmarks jar: runs JMH as usual, except that
+    results are written as JSON to jmh-result.json unless the command
+    line says otherwise, so they can be kept for comparing between releases.
+
+    Copyright 2014 Lawrence D'Oliveiro <ldo@geek-central.gen.nz>.
+
+    This program is free software: you can redistribute it and/or
+    modify it under the terms of the GNU General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+    General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+*/
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+public class RunBenchmarks
+  {
+
+    public static void main
+      (
+        String[] Args
+      )
+    throws Exception
+      {
+        final CommandLineOptions CmdOptions = new CommandLineOptions(Args);
+        final ChainedOptionsBuilder Options = new OptionsBuilder().parent(CmdOptions);
+        if (!CmdOptions.getResultFormat().hasValue())
+          {
+            Options.resultFormat(ResultFormatType.JSON);
+          } /*if*/
+        if (!CmdOptions.getResult().hasValue())
+          {
+            Options.result("jmh-result.json");
+          } /*if*/
+        if (CmdOptions.shouldHelp() || CmdOptions.shouldList() || CmdOptions.shouldListWithParams())
+          {
+          /* let JMH's own main handle these */
+            org.openjdk.jmh.Main.main(Args);
+          }
+        else
+          {
+            new Runner(Options.build()).run();
+          } /*if*/
+      } /*main*/
+
+  } /*RunBenchmarks*/;
@@ -0,0 +1,103 @@
+package nz.gen.geek_central.screencalc;
+/*
+    JMH benchmarks of ScreenIndex queries over a catalogue of a million
+    solved screens, compared on diagonal, density and aspect ratio.
+
+    Copyright 2014 Lawrence D'Oliveiro <ldo@geek-central.gen.nz>.
+
+    This program is free software: you can redistribute it and/or
+    modify it under the terms of the GNU General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+    General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import static nz.gen.geek_central.screencalc.Rules.FieldName;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScreenIndexBench
+  {
+
+    static final int NrRows = 1000000;
+    static final int NrTargets = 1024;
+
+    final ScreenParams[] Targets = new ScreenParams[NrTargets];
+    ScreenIndex Index;
+    ScreenIndex.Query Query;
+    int NextTarget = 0;
+
+    @Setup
+    public void Setup()
+      {
+      /* random but plausible screens, from phones to large monitors */
+        final java.util.Random Random = new java.util.Random(1);
+        final double[][] Columns = new double[RuleGraph.NrFields][NrRows];
+        final int[] Known = new int[NrRows];
+        final double[] Aspects = {9.0 / 16.0, 10.0 / 16.0, 3.0 / 4.0, 9.0 / 19.5, 9.0 / 20.0};
+        for (int Row = 0; Row < NrRows; ++Row)
+          {
+            Columns[FieldName.DiagMeasure.ordinal()][Row] =
+                (5.0 + Random.nextDouble() * 30.0) * Rules.cm_per_in;
+            Columns[FieldName.WidthPixels.ordinal()][Row] = 800 + Random.nextInt(3200);
+            Columns[FieldName.AspectRatio.ordinal()][Row] = Aspects[Random.nextInt(Aspects.length)];
+            Known[Row] =
+                    1 << FieldName.DiagMeasure.ordinal()
+                |
+                    1 << FieldName.WidthPixels.ordinal()
+                |
+                    1 << FieldName.AspectRatio.ordinal();
+          } /*for*/
+        new BulkSolver(new Rules().Graph).Solve(Columns, Known, null, 0, NrRows);
+        final FieldName[] Fields = {FieldName.DiagMeasure, FieldName.PixelDensity, FieldName.AspectRatio};
+        Index = new ScreenIndex
+          (
+            Columns,
+            Known,
+            Fields,
+            new double[] {1.0 / 2.54, 1.0 / 10.0, 1.0 / 0.05}
+              /* an inch, 10 dpcm or 0.05 in aspect count as the same difference */
+          );
+        Query = Index.NewQuery();
+        for (int i = 0; i < NrTargets; ++i)
+          {
+            final int Row = Random.nextInt(NrRows);
+            Targets[i] = new ScreenParams();
+            for (FieldName Name : Fields)
+              {
+                Targets[i].Set(Name, Columns[Name.ordinal()][Row] * (1.0 + 0.02 * Random.nextGaussian()));
+              } /*for*/
+          } /*for*/
+      } /*Setup*/
+
+    @Benchmark
+    public int Nearest20()
+      {
+        NextTarget = (NextTarget + 1) % NrTargets;
+        return
+            Query.Nearest(Targets[NextTarget], 20);
+      } /*Nearest20*/
+
+    @Benchmark
+    public int WithinRadius()
+      {
+        NextTarget = (NextTarget + 1) % NrTargets;
+        return
+            Query.WithinRadius(Targets[NextTarget], 0.5);
+      } /*WithinRadius*/
+
+  } /*ScreenIndexBench*/;
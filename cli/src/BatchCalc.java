@@ -0,0 +1,685 @@
+package nz.gen.geek_central.screencalc;
+/*
+    Command-line batch calculator: reads a CSV or TSV file with a header
+    row naming the columns, fills in whatever screen parameters can be
+    computed for each row, and writes the result out in the same form.
+    Columns are recognized by their FieldName.Name ("height", "widthpx",
+    "aspect" etc); any other columns are passed through unchanged, and
+    columns for any parameters not in the input are added on the end.
+
+    Rows are read, solved and written a batch at a time, so memory usage
+    is bounded regardless of the size of the input.
+
+    Optionally, overspecified rows can be checked for consistency, with
+    the largest relative discrepancy and the field it was found in added
+    as extra columns, and the given values can be replaced with ones
+    reconciled by ConsistencyCheck.
+
+    Copyright 2014 Lawrence D'Oliveiro <ldo@geek-central.gen.nz>.
+
+    This program is free software: you can redistribute it and/or
+    modify it under the terms of the GNU General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+    General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.ArrayList;
+import static nz.gen.geek_central.screencalc.Rules.FieldName;
+import static nz.gen.geek_central.screencalc.Rules.Units;
+
+public class BatchCalc
+  {
+
+    public static final int DefaultBatchSize = 4096;
+
+    static class RecordReader
+      {
+      /* splits input into records of delimiter-separated fields, following
+        the usual CSV quoting conventions: a field may be enclosed in double
+        quotes, in which case it may contain delimiters, line breaks, and
+        double quotes written twice. */
+        private final java.io.Reader In;
+        private final char Delimiter;
+        private final char[] Buf = new char[65536];
+        private int BufPos = 0, BufEnd = 0;
+        private final StringBuilder Field = new StringBuilder();
+        public long LineNr = 0; /* of the last record read, for error messages */
+        private long NextLineNr = 1;
+
+        public RecordReader
+          (
+            java.io.Reader In,
+            char Delimiter
+          )
+          {
+            this.In = In;
+            this.Delimiter = Delimiter;
+          } /*RecordReader*/
+
+        private int NextChar()
+          /* returns the next input character, or -1 at end of input. */
+        throws java.io.IOException
+          {
+            if (BufPos == BufEnd)
+              {
+                BufEnd = In.read(Buf, 0, Buf.length);
+                BufPos = 0;
+              } /*if*/
+            return
+                BufEnd > 0 ? Buf[BufPos++] : -1;
+          } /*NextChar*/
+
+        private void PushBack()
+          {
+            --BufPos;
+          } /*PushBack*/
+
+        public String[] Read()
+          /* returns the fields of the next record, or null at end of input. */
+        throws java.io.IOException
+          {
+            String[] Result = null;
+            LineNr = NextLineNr;
+            int c = NextChar();
+            if (c >= 0)
+              {
+                final ArrayList<String> Fields = new ArrayList<String>();
+                for (;;)
+                  {
+                  /* at start of a field, with its first character in c */
+                    Field.setLength(0);
+                    if (c == '"')
+                      {
+                        for (;;)
+                          {
+                            c = NextChar();
+                            if (c < 0)
+                              {
+                                throw new java.io.IOException
+                                  (
+                                    String.format("line %d: unterminated quoted field", LineNr)
+                                  );
+                              } /*if*/
+                            if (c == '"')
+                              {
+                                c = NextChar();
+                                if (c != '"')
+                                    break;
+                              }
+                            else if (c == '\n')
+                              {
+                                ++NextLineNr;
+                              } /*if*/
+                            Field.append((char)c);
+                          } /*for*/
+                      } /*if*/
+                    while (c >= 0 && c != Delimiter && c != '\n' && c != '\r')
+                      {
+                        Field.append((char)c);
+                        c = NextChar();
+                      } /*while*/
+                    Fields.add(Field.toString());
+                    if (c != Delimiter)
+                        break;
+                    c = NextChar();
+                  } /*for*/
+                if (c == '\r')
+                  {
+                    c = NextChar();
+                    if (c >= 0 && c != '\n')
+                      {
+                        PushBack();
+                      } /*if*/
+                  } /*if*/
+                ++NextLineNr;
+                Result = Fields.toArray(new String[Fields.size()]);
+              } /*if*/
+            return
+                Result;
+          } /*Read*/
+
+      } /*RecordReader*/;
+
+    static class RecordWriter
+      {
+        private final java.io.Writer Out;
+        private final char Delimiter;
+
+        public RecordWriter
+          (
+            java.io.Writer Out,
+            char Delimiter
+          )
+          {
+            this.Out = Out;
+            this.Delimiter = Delimiter;
+          } /*RecordWriter*/
+
+        public void Write
+          (
+            String[] Fields
+          )
+        throws java.io.IOException
+          {
+            for (int i = 0; i < Fields.length; ++i)
+              {
+                if (i != 0)
+                  {
+                    Out.write(Delimiter);
+                  } /*if*/
+                final String ThisField = Fields[i];
+                boolean NeedQuotes = false;
+                for (int j = 0; j < ThisField.length(); ++j)
+                  {
+                    final char c = ThisField.charAt(j);
+                    if (c == Delimiter || c == '"' || c == '\n' || c == '\r')
+                      {
+                        NeedQuotes = true;
+                        break;
+                      } /*if*/
+                  } /*for*/
+                if (NeedQuotes)
+                  {
+                    Out.write('"');
+                    Out.write(ThisField.replace("\"", "\"\""));
+                    Out.write('"');
+                  }
+                else
+                  {
+                    Out.write(ThisField);
+                  } /*if*/
+              } /*for*/
+            Out.write('\n');
+          } /*Write*/
+
+      } /*RecordWriter*/;
+
+    final Rules TheRules;
+    final Units CurUnits;
+    final int BatchSize;
+    final BulkSolver Solver;
+    final java.io.PrintStream Errors;
+    ConsistencyCheck Checker = null; /* non-null to check rows for consistency */
+    boolean Reconcile = false; /* whether to output reconciled values */
+    final ConsistencyCheck.Result CheckResult = new ConsistencyCheck.Result();
+    final ScreenParams CheckParams = new ScreenParams();
+    SolveCache Cache = null; /* non-null to remember solves of previously-seen rows */
+    final ScreenParams RowParams = new ScreenParams();
+
+    int NrColumns; /* in the output */
+    final int[] FieldColumn = new int[RuleGraph.NrFields]; /* output column for each FieldName */
+    int ResidualColumn, WorstColumn; /* output columns for consistency check */
+
+  /* the current batch */
+    final String[][] Rows;
+    final long[] RowLineNr;
+    final double[][] Values;
+    final int[] Known;
+    final int[] Computed;
+    final int[] Reconciled; /* mask of fields with reconciled values for each row */
+    final SolveCache.Result[] Cached; /* for each row, cached solve if found */
+    long NrErrors = 0;
+
+    public BatchCalc
+      (
+        Rules TheRules,
+        Units CurUnits,
+        int BatchSize,
+        java.io.PrintStream Errors /* where to report unparseable values */
+      )
+      {
+        this.TheRules = TheRules;
+        this.CurUnits = CurUnits;
+        this.BatchSize = BatchSize;
+        this.Errors = Errors;
+        Solver = new BulkSolver(TheRules.Graph);
+        Rows = new String[BatchSize][];
+        RowLineNr = new long[BatchSize];
+        Values = new double[RuleGraph.NrFields][BatchSize];
+        Known = new int[BatchSize];
+        Computed = new int[BatchSize];
+        Reconciled = new int[BatchSize];
+        Cached = new SolveCache.Result[BatchSize];
+      } /*BatchCalc*/
+
+    public void SetCheck
+      (
+        boolean Reconcile /* whether to replace values with reconciled ones */
+      )
+      /* enables consistency checking of overspecified rows. */
+      {
+        Checker = new ConsistencyCheck(TheRules.Graph);
+        this.Reconcile = Reconcile;
+      } /*SetCheck*/
+
+    public void SetCache
+      (
+        int Capacity
+      )
+      /* enables caching of the solves of up to the specified number of
+        different combinations of input values. */
+      {
+        Cache = new SolveCache(TheRules, Capacity, 1);
+      } /*SetCache*/
+
+    void GetRow
+      (
+        int Row,
+        int RowKnown,
+        ScreenParams Into
+      )
+      /* copies the specified fields of the specified row of the current
+        batch into Into. */
+      {
+        Into.ClearAll();
+        for (int Field = 0; Field < RuleGraph.NrFields; ++Field)
+          {
+            Into.Values[Field] = Values[Field][Row];
+          } /*for*/
+        Into.Known = RowKnown;
+      } /*GetRow*/
+
+    static int FindColumn
+      (
+        java.util.List<String> Header,
+        String Name
+      )
+      /* returns the index of the column with the specified name, adding
+        it on the end if there isn't one. */
+      {
+        int Result = -1;
+        for (int i = 0; i < Header.size(); ++i)
+          {
+            if (Header.get(i).trim().equalsIgnoreCase(Name))
+              {
+                Result = i;
+                break;
+              } /*if*/
+          } /*for*/
+        if (Result < 0)
+          {
+            Result = Header.size();
+            Header.add(Name);
+          } /*if*/
+        return
+            Result;
+      } /*FindColumn*/
+
+    String[] SetupColumns
+      (
+        String[] Header
+      )
+      /* works out which input columns hold which fields, and returns the
+        header for the output. */
+      {
+        final ArrayList<String> OutHeader = new ArrayList<String>(java.util.Arrays.asList(Header));
+        for (FieldName Name : FieldName.values())
+          {
+            FieldColumn[Name.ordinal()] = FindColumn(OutHeader, Name.Name);
+          } /*for*/
+        if (Checker != null)
+          {
+            ResidualColumn = FindColumn(OutHeader, "residual");
+            WorstColumn = FindColumn(OutHeader, "worst");
+          } /*if*/
+        NrColumns = OutHeader.size();
+        return
+            OutHeader.toArray(new String[NrColumns]);
+      } /*SetupColumns*/
+
+    void DoBatch
+      (
+        int NrRows,
+        RecordWriter Out
+      )
+    throws java.io.IOException
+      {
+        final FieldName[] Fields = FieldName.values();
+        for (int Row = 0; Row < NrRows; ++Row)
+          {
+            final String[] ThisRow = Rows[Row];
+            int RowKnown = 0;
+            for (FieldName Name : Fields)
+              {
+                final String ValueStr = ThisRow[FieldColumn[Name.ordinal()]].trim();
+                if (ValueStr.length() != 0)
+                  {
+                    try
+                      {
+                        Values[Name.ordinal()][Row] =
+                            TheRules.ParamDefs.get(Name).Parse.Parse(ValueStr, CurUnits);
+                        RowKnown |= 1 << Name.ordinal();
+                      }
+                    catch (NumberFormatException Bad)
+                      {
+                        Errors.printf
+                          (
+                            "line %d: bad value “%s” for %s: %s\n",
+                            RowLineNr[Row],
+                            ValueStr,
+                            Name.Name,
+                            Bad.getMessage()
+                          );
+                        ++NrErrors;
+                      } /*try*/
+                  } /*if*/
+              } /*for*/
+            Known[Row] = RowKnown;
+            if (Checker != null)
+              {
+                CheckRow(Row);
+              } /*if*/
+            Cached[Row] = null;
+            if (Cache != null)
+              {
+                GetRow(Row, RowKnown, RowParams);
+                final SolveCache.Result Hit = Cache.Get(RowParams, CurUnits);
+                if (Hit != null)
+                  {
+                  /* fill in the computed values now, leaving the solver nothing to do */
+                    for (int Field = 0; Field < RuleGraph.NrFields; ++Field)
+                      {
+                        if ((Hit.Computed & 1 << Field) != 0)
+                          {
+                            Values[Field][Row] = Hit.Values[Field];
+                          } /*if*/
+                      } /*for*/
+                    Known[Row] = RowKnown | Hit.Computed;
+                    Cached[Row] = Hit;
+                  } /*if*/
+              } /*if*/
+          } /*for*/
+        Solver.Solve(Values, Known, Computed, 0, NrRows);
+        final String[] Formatted = new String[RuleGraph.NrFields];
+        for (int Row = 0; Row < NrRows; ++Row)
+          {
+            final String[] ThisRow = Rows[Row];
+            final SolveCache.Result Hit = Cached[Row];
+            final int RowComputed = Hit != null ? Hit.Computed : Computed[Row];
+              /* reconciled values, if any, take precedence over computed ones */
+            for (FieldName Name : Fields)
+              {
+                if ((RowComputed & 1 << Name.ordinal()) != 0)
+                  {
+                    Formatted[Name.ordinal()] =
+                        Hit != null ?
+                            Hit.Formatted(Name)
+                        :
+                            TheRules.FormatField(Name, Values[Name.ordinal()][Row], CurUnits);
+                    if ((Reconciled[Row] & 1 << Name.ordinal()) == 0)
+                      {
+                        ThisRow[FieldColumn[Name.ordinal()]] = Formatted[Name.ordinal()];
+                      } /*if*/
+                  } /*if*/
+              } /*for*/
+            if (Cache != null && Hit == null)
+              {
+                GetRow(Row, Known[Row] & ~RowComputed, RowParams);
+                Cache.Put
+                  (
+                    RowParams,
+                    CurUnits,
+                    new SolveCache.Result(RowParams.Known, RowComputed, RowParams.Values, Formatted)
+                  );
+              } /*if*/
+            Out.Write(ThisRow);
+            Rows[Row] = null; /* don't hang on to it */
+            Cached[Row] = null;
+          } /*for*/
+      } /*DoBatch*/
+
+    void CheckRow
+      (
+        int Row
+      )
+      /* checks the values given in the specified row of the current batch
+        for consistency, putting the results into the row. If reconciling,
+        the reconciled values are put in as well. */
+      {
+        final String[] ThisRow = Rows[Row];
+        CheckParams.ClearAll();
+        for (int Field = 0; Field < RuleGraph.NrFields; ++Field)
+          {
+            CheckParams.Values[Field] = Values[Field][Row];
+          } /*for*/
+        CheckParams.Known = Known[Row];
+        final ConsistencyCheck.Result Result = Checker.Check(CheckParams, Reconcile, CheckResult);
+        ThisRow[ResidualColumn] =
+            Result.Worst != null ?
+                String.format("%.3g", Result.MaxResidual)
+            :
+                "";
+        ThisRow[WorstColumn] = Result.Worst != null ? Result.Worst.Name : "";
+        Reconciled[Row] = Reconcile ? Result.Reconciled : 0;
+        if (Reconcile)
+          {
+            for (FieldName Name : FieldName.values())
+              {
+                if ((Result.Reconciled & 1 << Name.ordinal()) != 0)
+                  {
+                    ThisRow[FieldColumn[Name.ordinal()]] =
+                        TheRules.FormatField(Name, Result.Values[Name.ordinal()], CurUnits);
+                  } /*if*/
+              } /*for*/
+          } /*if*/
+      } /*CheckRow*/
+
+    public void Process
+      (
+        RecordReader In,
+        RecordWriter Out
+      )
+    throws java.io.IOException
+      {
+        final String[] Header = In.Read();
+        if (Header == null)
+          {
+            throw new java.io.IOException("empty input, expecting header row");
+          } /*if*/
+        Out.Write(SetupColumns(Header));
+        int NrRows = 0;
+        for (;;)
+          {
+            final String[] Record = In.Read();
+            if (Record == null)
+                break;
+            if (Record.length == 1 && Record[0].length() == 0)
+                continue; /* ignore blank lines */
+            final String[] ThisRow = new String[NrColumns];
+            for (int i = 0; i < NrColumns; ++i)
+              {
+                ThisRow[i] = i < Record.length ? Record[i] : "";
+              } /*for*/
+            RowLineNr[NrRows] = In.LineNr;
+            Rows[NrRows++] = ThisRow;
+            if (NrRows == BatchSize)
+              {
+                DoBatch(NrRows, Out);
+                NrRows = 0;
+              } /*if*/
+          } /*for*/
+        if (NrRows != 0)
+          {
+            DoBatch(NrRows, Out);
+          } /*if*/
+      } /*Process*/
+
+    static void Usage()
+      {
+        System.err.println
+          (
+                "usage: BatchCalc [--units=cm|in] [--batch=n] [--csv|--tsv] [--check|--reconcile]\n"
+            +
+                "        [--cache=n] [--fast-ratios] [infile [outfile]]\n"
+            +
+                "    reads from standard input and writes to standard output if no files given;\n"
+            +
+                "    the delimiter defaults to tab if the input file name ends in .tsv, else comma;\n"
+            +
+                "    --fast-ratios formats aspect ratios with the faster simplest-fraction search."
+          );
+        System.exit(3);
+      } /*Usage*/
+
+    static int PositiveArg
+      (
+        String ArgValue
+      )
+      /* returns ArgValue as a positive integer, or reports usage if it isn't one. */
+      {
+        int Result = 0;
+        try
+          {
+            Result = Integer.parseInt(ArgValue);
+          }
+        catch (NumberFormatException NotNumber)
+          {
+          /* leave Result as zero */
+          } /*try*/
+        if (Result <= 0)
+          {
+            Usage();
+          } /*if*/
+        return
+            Result;
+      } /*PositiveArg*/
+
+    public static void main
+      (
+        String[] Args
+      )
+    throws java.io.IOException
+      {
+        Units CurUnits = Units.UNITS_CM;
+        int BatchSize = DefaultBatchSize;
+        Character Delimiter = null;
+        boolean Check = false, Reconcile = false, StrictRatios = true;
+        int CacheSize = 0;
+        final ArrayList<String> FileNames = new ArrayList<String>();
+        for (String Arg : Args)
+          {
+            if (Arg.startsWith("--units="))
+              {
+                final String UnitsName = Arg.substring(8);
+                if (UnitsName.equals("cm"))
+                  {
+                    CurUnits = Units.UNITS_CM;
+                  }
+                else if (UnitsName.equals("in"))
+                  {
+                    CurUnits = Units.UNITS_IN;
+                  }
+                else
+                  {
+                    Usage();
+                  } /*if*/
+              }
+            else if (Arg.startsWith("--batch="))
+              {
+                BatchSize = PositiveArg(Arg.substring(8));
+              }
+            else if (Arg.startsWith("--cache="))
+              {
+                CacheSize = PositiveArg(Arg.substring(8));
+              }
+            else if (Arg.equals("--csv"))
+              {
+                Delimiter = ',';
+              }
+            else if (Arg.equals("--tsv"))
+              {
+                Delimiter = '\t';
+              }
+            else if (Arg.equals("--check"))
+              {
+                Check = true;
+              }
+            else if (Arg.equals("--fast-ratios"))
+              {
+                StrictRatios = false;
+              }
+            else if (Arg.equals("--reconcile"))
+              {
+                Check = true;
+                Reconcile = true;
+              }
+            else if (Arg.startsWith("--") || FileNames.size() == 2)
+              {
+                Usage();
+              }
+            else
+              {
+                FileNames.add(Arg);
+              } /*if*/
+          } /*for*/
+        if (Delimiter == null)
+          {
+            Delimiter =
+                FileNames.size() > 0 && FileNames.get(0).toLowerCase().endsWith(".tsv") ?
+                    '\t'
+                :
+                    ',';
+          } /*if*/
+        final java.nio.charset.Charset Encoding = java.nio.charset.Charset.forName("UTF-8");
+        final java.io.Reader InFile =
+            new java.io.InputStreamReader
+              (
+                FileNames.size() > 0 ?
+                    new java.io.FileInputStream(FileNames.get(0))
+                :
+                    System.in,
+                Encoding
+              );
+        final java.io.Writer OutFile =
+            new java.io.BufferedWriter
+              (
+                new java.io.OutputStreamWriter
+                  (
+                    FileNames.size() > 1 ?
+                        new java.io.FileOutputStream(FileNames.get(1))
+                    :
+                        System.out,
+                    Encoding
+                  ),
+                65536
+              );
+        final BatchCalc Calc = new BatchCalc
+          (
+            new Rules(NumberUseful.FractionTable.Common, StrictRatios),
+            CurUnits,
+            BatchSize,
+            System.err
+          );
+        if (Check)
+          {
+            Calc.SetCheck(Reconcile);
+          } /*if*/
+        if (CacheSize != 0)
+          {
+            Calc.SetCache(CacheSize);
+          } /*if*/
+        Calc.Process(new RecordReader(InFile, Delimiter), new RecordWriter(OutFile, Delimiter));
+        OutFile.flush();
+        OutFile.close();
+        InFile.close();
+        if (Calc.Cache != null)
+          {
+            System.err.printf("cache: %s\n", Calc.Cache.GetStats());
+          } /*if*/
+        if (Calc.NrErrors != 0)
+          {
+            System.err.printf("%d values could not be parsed\n", Calc.NrErrors);
+            System.exit(1);
+          } /*if*/
+      } /*main*/
+
+  } /*BatchCalc*/;
@@ -0,0 +1,345 @@
+package nz.gen.geek_central.screencalc;
+/*
+    Command-line conversion between the CSV/TSV form read and written by
+    BatchCalc and the binary ScreenRecordFile form, plus in-place solving
+    of binary files. Going to binary, columns are recognized by their
+    FieldName.Name as for BatchCalc, and any other columns are dropped.
+    Going to text, there is one column for each FieldName, and each value
+    present is written out with Rules.FormatField.
+
+    Copyright 2014 Lawrence D'Oliveiro <ldo@geek-central.gen.nz>.
+
+    This program is free software: you can redistribute it and/or
+    modify it under the terms of the GNU General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+    General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.ArrayList;
+import static nz.gen.geek_central.screencalc.Rules.FieldName;
+import static nz.gen.geek_central.screencalc.Rules.Units;
+
+public class RecordConvert
+  {
+
+    static final java.nio.charset.Charset Encoding = java.nio.charset.Charset.forName("UTF-8");
+
+    final Rules TheRules;
+    final Units CurUnits;
+    final java.io.PrintStream Errors;
+    long NrErrors = 0;
+
+    public RecordConvert
+      (
+        Rules TheRules,
+        Units CurUnits,
+        java.io.PrintStream Errors /* where to report unparseable values */
+      )
+      {
+        this.TheRules = TheRules;
+        this.CurUnits = CurUnits;
+        this.Errors = Errors;
+      } /*RecordConvert*/
+
+    static boolean IsBlank
+      (
+        String[] Record
+      )
+      {
+        return
+            Record.length == 1 && Record[0].length() == 0;
+      } /*IsBlank*/
+
+    public void ToBinary
+      (
+        java.io.File InFileName,
+        char Delimiter,
+        java.io.File OutFileName
+      )
+      /* converts a text file to binary. The input is read twice, first to
+        count the records so the output can be mapped at its full size. */
+    throws java.io.IOException
+      {
+        long NrRecords = 0;
+          {
+            final java.io.Reader CountFile =
+                new java.io.InputStreamReader(new java.io.FileInputStream(InFileName), Encoding);
+            try
+              {
+                final BatchCalc.RecordReader In = new BatchCalc.RecordReader(CountFile, Delimiter);
+                if (In.Read() == null)
+                  {
+                    throw new java.io.IOException("empty input, expecting header row");
+                  } /*if*/
+                for (;;)
+                  {
+                    final String[] Record = In.Read();
+                    if (Record == null)
+                        break;
+                    if (!IsBlank(Record))
+                      {
+                        ++NrRecords;
+                      } /*if*/
+                  } /*for*/
+              }
+            finally
+              {
+                CountFile.close();
+              } /*try*/
+          }
+        final java.io.Reader InFile =
+            new java.io.InputStreamReader(new java.io.FileInputStream(InFileName), Encoding);
+        try
+          {
+            final BatchCalc.RecordReader In = new BatchCalc.RecordReader(InFile, Delimiter);
+            final String[] Header = In.Read();
+            final FieldName[] Fields = FieldName.values();
+            final int[] FieldColumn = new int[RuleGraph.NrFields];
+            for (FieldName Name : Fields)
+              {
+                FieldColumn[Name.ordinal()] = -1;
+                for (int i = 0; i < Header.length; ++i)
+                  {
+                    if (Header[i].trim().equalsIgnoreCase(Name.Name))
+                      {
+                        FieldColumn[Name.ordinal()] = i;
+                        break;
+                      } /*if*/
+                  } /*for*/
+              } /*for*/
+            final ScreenRecordFile Out = ScreenRecordFile.Create(OutFileName, NrRecords);
+            try
+              {
+                final ScreenParams Params = new ScreenParams();
+                long RecordNr = 0;
+                for (;;)
+                  {
+                    final String[] Record = In.Read();
+                    if (Record == null || RecordNr == NrRecords)
+                        break;
+                    if (IsBlank(Record))
+                        continue;
+                    Params.ClearAll();
+                    for (FieldName Name : Fields)
+                      {
+                        final int Column = FieldColumn[Name.ordinal()];
+                        final String ValueStr = Column >= 0 && Column < Record.length ? Record[Column].trim() : "";
+                        if (ValueStr.length() != 0)
+                          {
+                            try
+                              {
+                                Params.Set(Name, TheRules.ParamDefs.get(Name).Parse.Parse(ValueStr, CurUnits));
+                              }
+                            catch (NumberFormatException Bad)
+                              {
+                                Errors.printf
+                                  (
+                                    "line %d: bad value “%s” for %s: %s\n",
+                                    In.LineNr,
+                                    ValueStr,
+                                    Name.Name,
+                                    Bad.getMessage()
+                                  );
+                                ++NrErrors;
+                              } /*try*/
+                          } /*if*/
+                      } /*for*/
+                    Out.Put(RecordNr++, Params);
+                  } /*for*/
+              }
+            finally
+              {
+                Out.Close();
+              } /*try*/
+          }
+        finally
+          {
+            InFile.close();
+          } /*try*/
+      } /*ToBinary*/
+
+    public void ToText
+      (
+        java.io.File InFileName,
+        BatchCalc.RecordWriter Out
+      )
+      /* converts a binary file to text. */
+    throws java.io.IOException
+      {
+        final ScreenRecordFile In = ScreenRecordFile.Open(InFileName, false);
+        try
+          {
+            final FieldName[] Fields = FieldName.values();
+            final String[] Record = new String[Fields.length];
+            for (FieldName Name : Fields)
+              {
+                Record[Name.ordinal()] = Name.Name;
+              } /*for*/
+            Out.Write(Record);
+            for (long RecordNr = 0; RecordNr < In.NrRecords; ++RecordNr)
+              {
+                final int Known = In.GetKnown(RecordNr);
+                for (FieldName Name : Fields)
+                  {
+                    Record[Name.ordinal()] =
+                        (Known & 1 << Name.ordinal()) != 0 ?
+                            TheRules.FormatField(Name, In.GetValue(RecordNr, Name), CurUnits)
+                        :
+                            "";
+                  } /*for*/
+                Out.Write(Record);
+              } /*for*/
+          }
+        finally
+          {
+            In.Close();
+          } /*try*/
+      } /*ToText*/
+
+    static void Usage()
+      {
+        System.err.println
+          (
+                "usage: RecordConvert [--units=cm|in] [--csv|--tsv] --to-binary infile outfile\n"
+            +
+                "       RecordConvert [--units=cm|in] [--csv|--tsv] --to-text infile [outfile]\n"
+            +
+                "       RecordConvert --solve file\n"
+            +
+                "    --to-text writes to standard output if no outfile given; the text delimiter\n"
+            +
+                "    defaults to tab if the text file name ends in .tsv, else comma."
+          );
+        System.exit(3);
+      } /*Usage*/
+
+    public static void main
+      (
+        String[] Args
+      )
+    throws java.io.IOException
+      {
+        Units CurUnits = Units.UNITS_CM;
+        Character Delimiter = null;
+        String Mode = null;
+        final ArrayList<String> FileNames = new ArrayList<String>();
+        for (String Arg : Args)
+          {
+            if (Arg.startsWith("--units="))
+              {
+                final String UnitsName = Arg.substring(8);
+                if (UnitsName.equals("cm"))
+                  {
+                    CurUnits = Units.UNITS_CM;
+                  }
+                else if (UnitsName.equals("in"))
+                  {
+                    CurUnits = Units.UNITS_IN;
+                  }
+                else
+                  {
+                    Usage();
+                  } /*if*/
+              }
+            else if (Arg.equals("--csv"))
+              {
+                Delimiter = ',';
+              }
+            else if (Arg.equals("--tsv"))
+              {
+                Delimiter = '\t';
+              }
+            else if
+              (
+                    Mode == null
+                &&
+                    (Arg.equals("--to-binary") || Arg.equals("--to-text") || Arg.equals("--solve"))
+              )
+              {
+                Mode = Arg;
+              }
+            else if (Arg.startsWith("--") || FileNames.size() == 2)
+              {
+                Usage();
+              }
+            else
+              {
+                FileNames.add(Arg);
+              } /*if*/
+          } /*for*/
+        if
+          (
+                Mode == null
+            ||
+                Mode.equals("--to-binary") && FileNames.size() != 2
+            ||
+                Mode.equals("--to-text") && FileNames.size() == 0
+            ||
+                Mode.equals("--solve") && FileNames.size() != 1
+          )
+          {
+            Usage();
+          } /*if*/
+        final String TextFileName = Mode.equals("--to-binary") ? FileNames.get(0) : FileNames.size() > 1 ? FileNames.get(1) : null;
+        if (Delimiter == null)
+          {
+            Delimiter =
+                TextFileName != null && TextFileName.toLowerCase().endsWith(".tsv") ?
+                    '\t'
+                :
+                    ',';
+          } /*if*/
+        final Rules TheRules = new Rules();
+        final RecordConvert Convert = new RecordConvert(TheRules, CurUnits, System.err);
+        if (Mode.equals("--to-binary"))
+          {
+            Convert.ToBinary(new java.io.File(FileNames.get(0)), Delimiter, new java.io.File(FileNames.get(1)));
+          }
+        else if (Mode.equals("--to-text"))
+          {
+            final java.io.Writer OutFile =
+                new java.io.BufferedWriter
+                  (
+                    new java.io.OutputStreamWriter
+                      (
+                        TextFileName != null ?
+                            new java.io.FileOutputStream(TextFileName)
+                        :
+                            System.out,
+                        Encoding
+                      ),
+                    65536
+                  );
+            Convert.ToText(new java.io.File(FileNames.get(0)), new BatchCalc.RecordWriter(OutFile, Delimiter));
+            OutFile.flush();
+            OutFile.close();
+          }
+        else /* "--solve" */
+          {
+            final ScreenRecordFile TheFile = ScreenRecordFile.Open(new java.io.File(FileNames.get(0)), true);
+            try
+              {
+                TheFile.Solve(TheRules.Graph);
+              }
+            finally
+              {
+                TheFile.Close();
+              } /*try*/
+          } /*if*/
+        if (Convert.NrErrors != 0)
+          {
+            System.err.printf("%d values could not be parsed\n", Convert.NrErrors);
+            System.exit(1);
+          } /*if*/
+      } /*main*/
+
+  } /*RecordConvert*/;
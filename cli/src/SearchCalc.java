@@ -0,0 +1,282 @@
+package nz.gen.geek_central.screencalc;
+/*
+    Command-line front end to DesignSearch: finds all screens with whole
+    numbers of pixels satisfying constraints given as arguments of the
+    form name=spec, where name is a FieldName.Name and spec is a comma-
+    separated list of values or lo..hi ranges, e.g.
+
+        density=300dpi..330dpi diagonal=6.1in..6.7in aspect=19.5:9,20:9
+
+    Writes one CSV (or TSV) row per configuration found, giving the pixel
+    counts and aspect ratio, and the lowest and highest values each of
+    the other parameters can take with them.
+
+    Copyright 2014 Lawrence D'Oliveiro <ldo@geek-central.gen.nz>.
+
+    This program is free software: you can redistribute it and/or
+    modify it under the terms of the GNU General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+    General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.ArrayList;
+import static nz.gen.geek_central.screencalc.Rules.FieldName;
+import static nz.gen.geek_central.screencalc.Rules.Units;
+
+public class SearchCalc
+  {
+
+    static final FieldName[] FixedFields =
+        {
+            FieldName.WidthPixels,
+            FieldName.HeightPixels,
+            FieldName.TotalPixels,
+            FieldName.AspectRatio,
+        };
+      /* fields whose values are determined by the pixel counts */
+    static final FieldName[] RangeFields =
+        {
+            FieldName.PixelDensity,
+            FieldName.DiagMeasure,
+            FieldName.WidthMeasure,
+            FieldName.HeightMeasure,
+            FieldName.ViewingDistance,
+        };
+      /* fields which can vary with the pixel counts fixed */
+
+    static void Usage()
+      {
+        System.err.println
+          (
+                "usage: SearchCalc [--units=cm|in] [--csv|--tsv] [--threads=n] [--tolerance=x]\n"
+            +
+                "        name=spec ...\n"
+            +
+                "    where name is one of height, width, diagonal, density, aspect, viewdist,\n"
+            +
+                "    heightpx, widthpx, totalpx, and spec is a comma-separated list of values\n"
+            +
+                "    or lo..hi ranges. Single values other than pixel counts are matched within\n"
+            +
+                "    the given relative tolerance (default 0.001). Results are written to\n"
+            +
+                "    standard output, in no particular order."
+          );
+        System.exit(3);
+      } /*Usage*/
+
+    static FieldName FindField
+      (
+        String Name
+      )
+      {
+        FieldName Result = null;
+        for (FieldName ThisName : FieldName.values())
+          {
+            if (ThisName.Name.equals(Name))
+              {
+                Result = ThisName;
+                break;
+              } /*if*/
+          } /*for*/
+        if (Result == null)
+          {
+            Usage();
+          } /*if*/
+        return
+            Result;
+      } /*FindField*/
+
+    public static void main
+      (
+        String[] Args
+      )
+    throws java.io.IOException, InterruptedException
+      {
+        Units CurUnits = Units.UNITS_CM;
+        char Delimiter = ',';
+        int NrThreads = Runtime.getRuntime().availableProcessors();
+        double Tolerance = -1.0;
+        final ArrayList<String> Specs = new ArrayList<String>();
+        for (String Arg : Args)
+          {
+            if (Arg.startsWith("--units="))
+              {
+                final String UnitsName = Arg.substring(8);
+                if (UnitsName.equals("cm"))
+                  {
+                    CurUnits = Units.UNITS_CM;
+                  }
+                else if (UnitsName.equals("in"))
+                  {
+                    CurUnits = Units.UNITS_IN;
+                  }
+                else
+                  {
+                    Usage();
+                  } /*if*/
+              }
+            else if (Arg.equals("--csv"))
+              {
+                Delimiter = ',';
+              }
+            else if (Arg.equals("--tsv"))
+              {
+                Delimiter = '\t';
+              }
+            else if (Arg.startsWith("--threads="))
+              {
+                try
+                  {
+                    NrThreads = Integer.parseInt(Arg.substring(10));
+                  }
+                catch (NumberFormatException NotNumber)
+                  {
+                    NrThreads = 0;
+                  } /*try*/
+                if (NrThreads <= 0)
+                  {
+                    Usage();
+                  } /*if*/
+              }
+            else if (Arg.startsWith("--tolerance="))
+              {
+                try
+                  {
+                    Tolerance = Double.parseDouble(Arg.substring(12));
+                  }
+                catch (NumberFormatException NotNumber)
+                  {
+                    Tolerance = Double.NaN;
+                  } /*try*/
+                if (!(Tolerance >= 0.0))
+                  {
+                    Usage();
+                  } /*if*/
+              }
+            else if (Arg.startsWith("--") || Arg.indexOf('=') < 0)
+              {
+                Usage();
+              }
+            else
+              {
+                Specs.add(Arg);
+              } /*if*/
+          } /*for*/
+        final Rules TheRules = new Rules();
+        final DesignSearch Search = new DesignSearch(TheRules);
+        if (Tolerance >= 0.0)
+          {
+            Search.Tolerance = Tolerance;
+          } /*if*/
+        for (String Spec : Specs)
+          {
+            final int EqualsPos = Spec.indexOf('=');
+            final FieldName Name = FindField(Spec.substring(0, EqualsPos).trim());
+            final Rules.Parser Parse = TheRules.ParamDefs.get(Name).Parse;
+            for (String Item : Spec.substring(EqualsPos + 1).split(","))
+              {
+                final int RangePos = Item.indexOf("..");
+                try
+                  {
+                    if (RangePos >= 0)
+                      {
+                        Search.Allow
+                          (
+                            Name,
+                            Parse.Parse(Item.substring(0, RangePos).trim(), CurUnits),
+                            Parse.Parse(Item.substring(RangePos + 2).trim(), CurUnits)
+                          );
+                      }
+                    else
+                      {
+                        Search.AllowValue(Name, Parse.Parse(Item.trim(), CurUnits));
+                      } /*if*/
+                  }
+                catch (IllegalArgumentException Bad) /* includes NumberFormatException */
+                  {
+                    System.err.printf("bad value “%s” for %s: %s\n", Item, Name.Name, Bad.getMessage());
+                    System.exit(1);
+                  } /*try*/
+              } /*for*/
+          } /*for*/
+        final java.io.Writer OutFile =
+            new java.io.BufferedWriter
+              (
+                new java.io.OutputStreamWriter(System.out, java.nio.charset.Charset.forName("UTF-8")),
+                65536
+              );
+        final BatchCalc.RecordWriter Out = new BatchCalc.RecordWriter(OutFile, Delimiter);
+        final ArrayList<String> Header = new ArrayList<String>();
+        for (FieldName Name : FixedFields)
+          {
+            Header.add(Name.Name);
+          } /*for*/
+        for (FieldName Name : RangeFields)
+          {
+            Header.add(Name.Name + "_min");
+            Header.add(Name.Name + "_max");
+          } /*for*/
+        Out.Write(Header.toArray(new String[Header.size()]));
+        final Units OutUnits = CurUnits;
+        final long NrFound;
+        try
+          {
+            NrFound = Search.Search
+              (
+                new DesignSearch.Receiver()
+                  {
+                    final String[] Row = new String[FixedFields.length + 2 * RangeFields.length];
+
+                    public synchronized void Found
+                      (
+                        DesignSearch.Config TheConfig
+                      )
+                      {
+                        int Column = 0;
+                        for (FieldName Name : FixedFields)
+                          {
+                            Row[Column++] =
+                                TheRules.FormatField(Name, TheConfig.Example.Get(Name), OutUnits);
+                          } /*for*/
+                        for (FieldName Name : RangeFields)
+                          {
+                            Row[Column++] =
+                                TheRules.FormatField(Name, TheConfig.Lo[Name.ordinal()], OutUnits);
+                            Row[Column++] =
+                                TheRules.FormatField(Name, TheConfig.Hi[Name.ordinal()], OutUnits);
+                          } /*for*/
+                        try
+                          {
+                            Out.Write(Row);
+                          }
+                        catch (java.io.IOException Failed)
+                          {
+                            throw new RuntimeException(Failed);
+                          } /*try*/
+                      } /*Found*/
+                  },
+                NrThreads
+              );
+          }
+        catch (IllegalArgumentException Unbounded)
+          {
+            OutFile.flush();
+            System.err.println(Unbounded.getMessage());
+            System.exit(1);
+            return;
+          } /*try*/
+        OutFile.flush();
+        System.err.printf("%d configurations found\n", NrFound);
+      } /*main*/
+
+  } /*SearchCalc*/;
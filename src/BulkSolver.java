@@ -0,0 +1,231 @@
+package nz.gen.geek_central.screencalc;
+/*
+    Solving of large numbers of sets of screen parameters at once, laid
+    out as columns: one array of values for each field, plus a column of
+    known-field masks. Rows are grouped by mask, and each group is solved
+    by running each step of its plan over the whole group at once, on
+    contiguous copies of the columns involved. That way each inner loop
+    is a simple pass over plain arrays, in the shape the JIT can unroll
+    and vectorise.
+
+    There should be nothing Android-specific in this source file.
+
+    Copyright 2014 Lawrence D'Oliveiro <ldo@geek-central.gen.nz>.
+
+    This program is free software: you can redistribute it and/or
+    modify it under the terms of the GNU General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+    General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+*/
+
+public class BulkSolver
+  {
+  /* not safe for concurrent use: the scratch arrays are reused between
+    calls. Use a separate instance for each thread. */
+    public final RuleGraph Graph;
+
+    private final int[] GroupStart = new int[RuleGraph.AllFields + 2];
+    private int[] Order = new int[0]; /* row numbers sorted by mask */
+    private double[][] Scratch = new double[RuleGraph.NrFields][0];
+      /* contiguous copies of the columns for the current group */
+    private final double[][] ArgBufs = new double[RuleGraph.NrFields + 1][];
+
+    public BulkSolver
+      (
+        RuleGraph Graph
+      )
+      {
+        this.Graph = Graph;
+        for (int i = 0; i < ArgBufs.length; ++i)
+          {
+            ArgBufs[i] = new double[i];
+          } /*for*/
+      } /*BulkSolver*/
+
+    private void Reserve
+      (
+        int NrRows
+      )
+      {
+        if (Order.length < NrRows)
+          {
+            Order = new int[NrRows];
+            Scratch = new double[RuleGraph.NrFields][NrRows];
+          } /*if*/
+      } /*Reserve*/
+
+    public void Solve
+      (
+        double[][] Columns,
+          /* indexed by FieldName.ordinal(), then by row; computed values are
+            written back here */
+        int[] Known,
+          /* mask of known fields for each row, computed fields are added in */
+        int[] Computed,
+          /* optional, set to mask of fields computed for each row */
+        int From,
+        int To
+          /* range of rows to solve */
+      )
+      /* tries to fill in all missing parameter values in rows [From, To)
+        based on the known ones. Each row ends up with exactly the same
+        values as ComputeParams would give it. */
+      {
+        final int NrRows = To - From;
+        Reserve(NrRows);
+      /* counting sort of rows by mask */
+        java.util.Arrays.fill(GroupStart, 0);
+        for (int Row = From; Row < To; ++Row)
+          {
+            ++GroupStart[(Known[Row] & RuleGraph.AllFields) + 1];
+          } /*for*/
+        for (int Mask = 1; Mask < GroupStart.length; ++Mask)
+          {
+            GroupStart[Mask] += GroupStart[Mask - 1];
+          } /*for*/
+        for (int Row = From; Row < To; ++Row)
+          {
+            Order[GroupStart[Known[Row] & RuleGraph.AllFields]++] = Row;
+          } /*for*/
+      /* GroupStart[Mask] is now the end of the group for Mask */
+        int GroupBegin = 0;
+        for (int Mask = 0; Mask <= RuleGraph.AllFields; ++Mask)
+          {
+            final int GroupEnd = GroupStart[Mask];
+            final int GroupSize = GroupEnd - GroupBegin;
+            if (GroupSize != 0)
+              {
+                final RuleGraph.Plan ThePlan = Graph.GetPlan(Mask);
+                if (ThePlan.StepTarget.length != 0)
+                  {
+                    SolveGroup(ThePlan, Columns, GroupBegin, GroupSize);
+                  } /*if*/
+                for (int i = GroupBegin; i < GroupEnd; ++i)
+                  {
+                    final int Row = Order[i];
+                    Known[Row] |= ThePlan.ComputedMask;
+                    if (Computed != null)
+                      {
+                        Computed[Row] = ThePlan.ComputedMask;
+                      } /*if*/
+                  } /*for*/
+              } /*if*/
+            GroupBegin = GroupEnd;
+          } /*for*/
+      } /*Solve*/
+
+    private void SolveGroup
+      (
+        RuleGraph.Plan ThePlan,
+        double[][] Columns,
+        int GroupBegin,
+        int GroupSize
+      )
+      {
+      /* gather the known columns into contiguous scratch arrays */
+        for (int Field = 0; Field < RuleGraph.NrFields; ++Field)
+          {
+            if ((ThePlan.KnownMask & 1 << Field) != 0)
+              {
+                final double[] From = Columns[Field];
+                final double[] To = Scratch[Field];
+                for (int i = 0; i < GroupSize; ++i)
+                  {
+                    To[i] = From[Order[GroupBegin + i]];
+                  } /*for*/
+              } /*if*/
+          } /*for*/
+      /* run each step over the whole group */
+        for (int Step = 0; Step < ThePlan.StepTarget.length; ++Step)
+          {
+            final int[] ArgOrdinals = ThePlan.StepArgs[Step];
+            final Rules.CalcFunction Calc = ThePlan.StepCalc[Step];
+            final double[] Result = Scratch[ThePlan.StepTarget[Step]];
+            final double[] Args = ArgBufs[ArgOrdinals.length];
+            final int Op = ThePlan.StepOp[Step];
+            if (Op >= 0)
+              {
+                Rules.EvaluateColumns
+                  (
+                    Op,
+                    Scratch[ArgOrdinals[0]],
+                    ArgOrdinals.length > 1 ? Scratch[ArgOrdinals[1]] : null,
+                    Result,
+                    GroupSize
+                  );
+              }
+            else
+              {
+                switch (ArgOrdinals.length)
+                  {
+                case 1:
+                      {
+                        final double[] Arg0 = Scratch[ArgOrdinals[0]];
+                        for (int i = 0; i < GroupSize; ++i)
+                          {
+                            Args[0] = Arg0[i];
+                            Result[i] = Calc.Calculate(Args);
+                          } /*for*/
+                      }
+                break;
+                case 2:
+                      {
+                        final double[] Arg0 = Scratch[ArgOrdinals[0]];
+                        final double[] Arg1 = Scratch[ArgOrdinals[1]];
+                        for (int i = 0; i < GroupSize; ++i)
+                          {
+                            Args[0] = Arg0[i];
+                            Args[1] = Arg1[i];
+                            Result[i] = Calc.Calculate(Args);
+                          } /*for*/
+                      }
+                break;
+                default:
+                    for (int i = 0; i < GroupSize; ++i)
+                      {
+                        for (int j = 0; j < ArgOrdinals.length; ++j)
+                          {
+                            Args[j] = Scratch[ArgOrdinals[j]][i];
+                          } /*for*/
+                        Result[i] = Calc.Calculate(Args);
+                      } /*for*/
+                break;
+                  } /*switch*/
+              } /*if*/
+          } /*for*/
+      /* scatter the computed columns back */
+        for (int Field = 0; Field < RuleGraph.NrFields; ++Field)
+          {
+            if ((ThePlan.ComputedMask & 1 << Field) != 0)
+              {
+                final double[] From = Scratch[Field];
+                final double[] To = Columns[Field];
+                for (int i = 0; i < GroupSize; ++i)
+                  {
+                    To[Order[GroupBegin + i]] = From[i];
+                  } /*for*/
+              } /*if*/
+          } /*for*/
+      } /*SolveGroup*/
+
+    public void Solve
+      (
+        double[][] Columns,
+        int[] Known,
+        int[] Computed
+      )
+      /* solves all the rows. */
+      {
+        Solve(Columns, Known, Computed, 0, Known.length);
+      } /*Solve*/
+
+  } /*BulkSolver*/;
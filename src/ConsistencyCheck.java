@@ -0,0 +1,408 @@
+package nz.gen.geek_central.screencalc;
+/*
+    Checking of overspecified screen parameters for consistency. The
+    normal solve only computes fields that are missing, using the first
+    applicable rule, so any disagreement between the given values goes
+    unnoticed. This instead evaluates every rule whose arguments are all
+    given, and reports for each field how far apart the values obtained
+    for it are. It can also reconcile the given values, by finding the
+    screen that fits them all best in the least-squares sense.
+
+    The reconciliation works in terms of the logarithms of the values,
+    so errors are relative, and different units don't matter. In those
+    terms, every screen is determined by just three numbers: the widths
+    in distance units and in pixels, and the aspect ratio. All the other
+    fields are linear functions of these, apart from the diagonal, which
+    is only mildly nonlinear. So a few Gauss-Newton iterations on a 3×3
+    system are enough, and the cost stays linear in the number of rules,
+    just like the normal solve.
+
+    There should be nothing Android-specific in this source file.
+
+    Copyright 2014 Lawrence D'Oliveiro <ldo@geek-central.gen.nz>.
+
+    This program is free software: you can redistribute it and/or
+    modify it under the terms of the GNU General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+    General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+*/
+
+import static nz.gen.geek_central.screencalc.Rules.FieldName;
+
+public class ConsistencyCheck
+  {
+  /* not safe for concurrent use: the scratch arrays are reused between
+    calls. Use a separate instance for each thread. */
+
+    static final int MaxIterations = 20;
+    static final double Damping = 1e-12;
+      /* keeps the normal equations solvable when the given fields don't
+        determine all three parameters, without noticeably affecting
+        the ones they do determine */
+    static final double LogAcuity = Math.log(Rules.acuity_factor);
+
+    public final RuleGraph Graph;
+    private final double[] Weights = new double[RuleGraph.NrFields];
+    private final ScreenParams Scratch = new ScreenParams();
+    private final double[][] ArgBufs = new double[RuleGraph.NrFields + 1][];
+    private final double[] Param = new double[3];
+    private final double[] Gradient = new double[3];
+    private final double[][] Normal = new double[3][3];
+    private final double[] Rhs = new double[3];
+    private final double[] Step = new double[3];
+      /* for the reconciliation */
+
+    static final int[] ParamFields =
+      /* fields whose logs are the parameters of the model */
+        {
+            FieldName.WidthMeasure.ordinal(),
+            FieldName.AspectRatio.ordinal(),
+            FieldName.WidthPixels.ordinal(),
+        };
+
+    public static class Result
+      {
+        public int Given;
+          /* bits by field ordinal of the given fields that took part */
+        public int Checked;
+          /* bits by field ordinal of fields with at least two values to compare */
+        public final double[] Residual = new double[RuleGraph.NrFields];
+          /* indexed by field ordinal, largest relative difference between
+            the given value (if any) and the values computed for it by the
+            rules, or between those values if not given; 0 where not checked */
+        public double MaxResidual;
+        public FieldName Worst; /* field with MaxResidual, null if none checked */
+        public int Reconciled;
+          /* bits by field ordinal of fields determined by the given ones,
+            for which a reconciled value has been computed */
+        public final double[] Values = new double[RuleGraph.NrFields];
+          /* reconciled values, indexed by field ordinal, where bits set in Reconciled */
+        public double RMSError;
+          /* root-mean-square relative difference between given and reconciled values */
+      } /*Result*/;
+
+    public ConsistencyCheck
+      (
+        RuleGraph Graph
+      )
+      {
+        this.Graph = Graph;
+        java.util.Arrays.fill(Weights, 1.0);
+        for (int i = 0; i < ArgBufs.length; ++i)
+          {
+            ArgBufs[i] = new double[i];
+          } /*for*/
+      } /*ConsistencyCheck*/
+
+    public void SetWeight
+      (
+        FieldName Name,
+        double Weight
+      )
+      /* sets the relative weight to give to the specified field in the
+        reconciliation, e.g. higher for values known to be more accurate.
+        The default is 1 for all fields. */
+      {
+        if (!(Weight > 0.0))
+          {
+            throw new IllegalArgumentException("weight must be positive");
+          } /*if*/
+        Weights[Name.ordinal()] = Weight;
+      } /*SetWeight*/
+
+    static double Model
+      (
+        int Field,
+        double LogWidth,
+        double LogAspect,
+        double LogWidthPixels,
+        double[] Gradient /* optional, set to derivatives of result with respect to the three */
+      )
+      /* returns the logarithm of the value of the specified field for the
+        screen with the specified parameters. */
+      {
+        double Result = 0.0;
+        double DWidth = 0.0, DAspect = 0.0, DWidthPixels = 0.0;
+        switch (RuleGraph.Fields[Field])
+          {
+        case HeightMeasure:
+            Result = LogWidth + LogAspect;
+            DWidth = 1.0;
+            DAspect = 1.0;
+        break;
+        case WidthMeasure:
+            Result = LogWidth;
+            DWidth = 1.0;
+        break;
+        case DiagMeasure:
+              {
+                final double Aspect2 = Math.exp(2.0 * LogAspect);
+                Result = LogWidth + 0.5 * Math.log1p(Aspect2);
+                DWidth = 1.0;
+                DAspect = Aspect2 / (1.0 + Aspect2);
+              }
+        break;
+        case PixelDensity:
+            Result = LogWidthPixels - LogWidth;
+            DWidth = -1.0;
+            DWidthPixels = 1.0;
+        break;
+        case AspectRatio:
+            Result = LogAspect;
+            DAspect = 1.0;
+        break;
+        case ViewingDistance:
+            Result = LogAcuity - LogWidthPixels + LogWidth;
+            DWidth = 1.0;
+            DWidthPixels = -1.0;
+        break;
+        case HeightPixels:
+            Result = LogWidthPixels + LogAspect;
+            DAspect = 1.0;
+            DWidthPixels = 1.0;
+        break;
+        case WidthPixels:
+            Result = LogWidthPixels;
+            DWidthPixels = 1.0;
+        break;
+        case TotalPixels:
+            Result = 2.0 * LogWidthPixels + LogAspect;
+            DAspect = 1.0;
+            DWidthPixels = 2.0;
+        break;
+          } /*switch*/
+        if (Gradient != null)
+          {
+            Gradient[0] = DWidth;
+            Gradient[1] = DAspect;
+            Gradient[2] = DWidthPixels;
+          } /*if*/
+        return
+            Result;
+      } /*Model*/
+
+    public Result Check
+      (
+        ScreenParams Given,
+          /* the Known fields are taken as the given ones, Computed is ignored;
+            fields with values that are not positive and finite are left out */
+        boolean Reconcile, /* whether to compute reconciled values as well */
+        Result Into /* optional, reused if not null */
+      )
+      {
+        final Result TheResult = Into != null ? Into : new Result();
+        final double[] GivenValues = Given.Values;
+        int GivenMask = 0;
+        for (int Field = 0; Field < RuleGraph.NrFields; ++Field)
+          {
+            final double Value = GivenValues[Field];
+            if ((Given.Known & 1 << Field) != 0 && Value > 0.0 && !Double.isInfinite(Value))
+              {
+                GivenMask |= 1 << Field;
+              } /*if*/
+          } /*for*/
+        TheResult.Given = GivenMask;
+        TheResult.Checked = 0;
+        TheResult.MaxResidual = 0.0;
+        TheResult.Worst = null;
+      /* evaluate every rule whose arguments are all given */
+        for (int Field = 0; Field < RuleGraph.NrFields; ++Field)
+          {
+            boolean HaveRef = (GivenMask & 1 << Field) != 0;
+            double Ref = HaveRef ? GivenValues[Field] : 0.0;
+            double Residual = 0.0;
+            boolean Compared = false;
+            for (int RuleIndex : Graph.RulesFor[Field])
+              {
+                final int[] ArgOrdinals = Graph.RuleArgs[RuleIndex];
+                final double[] Args = ArgBufs[ArgOrdinals.length];
+                boolean Applicable = true;
+                for (int i = 0; i < ArgOrdinals.length; ++i)
+                  {
+                    if ((GivenMask & 1 << ArgOrdinals[i]) == 0)
+                      {
+                        Applicable = false;
+                        break;
+                      } /*if*/
+                    Args[i] = GivenValues[ArgOrdinals[i]];
+                  } /*for*/
+                if (Applicable)
+                  {
+                    final double Value = Graph.RuleCalc[RuleIndex].Calculate(Args);
+                    if (HaveRef)
+                      {
+                        double Diff = Math.abs(Value - Ref) / Math.abs(Ref);
+                        if (Double.isNaN(Diff))
+                          {
+                            Diff = Double.POSITIVE_INFINITY; /* e.g. diagonal shorter than width */
+                          } /*if*/
+                        Residual = Math.max(Residual, Diff);
+                        Compared = true;
+                      }
+                    else
+                      {
+                        Ref = Value;
+                        HaveRef = true;
+                      } /*if*/
+                  } /*if*/
+              } /*for*/
+            TheResult.Residual[Field] = Residual;
+            if (Compared)
+              {
+                TheResult.Checked |= 1 << Field;
+                if (TheResult.Worst == null || Residual > TheResult.MaxResidual)
+                  {
+                    TheResult.MaxResidual = Residual;
+                    TheResult.Worst = RuleGraph.Fields[Field];
+                  } /*if*/
+              } /*if*/
+          } /*for*/
+        TheResult.Reconciled = 0;
+        TheResult.RMSError = 0.0;
+        if (Reconcile && GivenMask != 0)
+          {
+            Reconcile(GivenValues, GivenMask, TheResult);
+          } /*if*/
+        return
+            TheResult;
+      } /*Check*/
+
+    private void Reconcile
+      (
+        double[] GivenValues,
+        int GivenMask,
+        Result TheResult
+      )
+      {
+      /* starting point: whatever the normal solve comes up with */
+        Scratch.ClearAll();
+        for (int Field = 0; Field < RuleGraph.NrFields; ++Field)
+          {
+            if ((GivenMask & 1 << Field) != 0)
+              {
+                Scratch.Values[Field] = GivenValues[Field];
+              } /*if*/
+          } /*for*/
+        Scratch.Known = GivenMask;
+        Graph.Solve(Scratch);
+        final int Determined = Scratch.Known;
+        final double[] Param = this.Param;
+        for (int i = 0; i < 3; ++i)
+          {
+            final double Start = Scratch.Values[ParamFields[i]];
+            Param[i] = (Determined & 1 << ParamFields[i]) != 0 && Start > 0.0 ? Math.log(Start) : 0.0;
+          } /*for*/
+      /* Gauss-Newton iterations on the weighted log residuals */
+        final double[] Gradient = this.Gradient;
+        final double[][] Normal = this.Normal;
+        final double[] Rhs = this.Rhs;
+        final double[] Step = this.Step;
+        for (int Iteration = 0; Iteration < MaxIterations; ++Iteration)
+          {
+            for (int i = 0; i < 3; ++i)
+              {
+                java.util.Arrays.fill(Normal[i], 0.0);
+                Normal[i][i] = Damping;
+                Rhs[i] = 0.0;
+              } /*for*/
+            for (int Field = 0; Field < RuleGraph.NrFields; ++Field)
+              {
+                if ((GivenMask & 1 << Field) != 0)
+                  {
+                    final double Residual =
+                            Math.log(GivenValues[Field])
+                        -
+                            Model(Field, Param[0], Param[1], Param[2], Gradient);
+                    final double Weight = Weights[Field];
+                    for (int i = 0; i < 3; ++i)
+                      {
+                        for (int j = 0; j < 3; ++j)
+                          {
+                            Normal[i][j] += Weight * Gradient[i] * Gradient[j];
+                          } /*for*/
+                        Rhs[i] += Weight * Gradient[i] * Residual;
+                      } /*for*/
+                  } /*if*/
+              } /*for*/
+            Solve3(Normal, Rhs, Step);
+            double StepSize = 0.0;
+            for (int i = 0; i < 3; ++i)
+              {
+                Param[i] += Step[i];
+                StepSize = Math.max(StepSize, Math.abs(Step[i]));
+              } /*for*/
+            if (StepSize < 1e-14)
+                break;
+          } /*for*/
+      /* report the fit for those fields that the given ones determine */
+        double SumSquares = 0.0, SumWeights = 0.0;
+        for (int Field = 0; Field < RuleGraph.NrFields; ++Field)
+          {
+            final double LogValue = Model(Field, Param[0], Param[1], Param[2], null);
+            if ((GivenMask & 1 << Field) != 0)
+              {
+                final double Residual = Math.log(GivenValues[Field]) - LogValue;
+                SumSquares += Weights[Field] * Residual * Residual;
+                SumWeights += Weights[Field];
+              } /*if*/
+            if ((Determined & 1 << Field) != 0)
+              {
+                TheResult.Values[Field] = Math.exp(LogValue);
+              } /*if*/
+          } /*for*/
+        TheResult.Reconciled = Determined;
+        TheResult.RMSError = Math.sqrt(SumSquares / SumWeights);
+      } /*Reconcile*/
+
+    static double Det3
+      (
+        double[][] A,
+        int ReplaceCol, /* column to take from b instead, -1 for none */
+        double[] b
+      )
+      /* returns the determinant of the 3×3 matrix A, optionally with
+        one column replaced by b. */
+      {
+        final double
+            M00 = ReplaceCol == 0 ? b[0] : A[0][0],
+            M01 = ReplaceCol == 1 ? b[0] : A[0][1],
+            M02 = ReplaceCol == 2 ? b[0] : A[0][2],
+            M10 = ReplaceCol == 0 ? b[1] : A[1][0],
+            M11 = ReplaceCol == 1 ? b[1] : A[1][1],
+            M12 = ReplaceCol == 2 ? b[1] : A[1][2],
+            M20 = ReplaceCol == 0 ? b[2] : A[2][0],
+            M21 = ReplaceCol == 1 ? b[2] : A[2][1],
+            M22 = ReplaceCol == 2 ? b[2] : A[2][2];
+        return
+                M00 * (M11 * M22 - M12 * M21)
+            -
+                M01 * (M10 * M22 - M12 * M20)
+            +
+                M02 * (M10 * M21 - M11 * M20);
+      } /*Det3*/
+
+    static void Solve3
+      (
+        double[][] A,
+        double[] b,
+        double[] x /* where to put the solution */
+      )
+      /* solves the 3×3 system A x = b by Cramer's rule. */
+      {
+        final double Det = Det3(A, -1, null);
+        for (int i = 0; i < 3; ++i)
+          {
+            x[i] = Det3(A, i, b) / Det;
+          } /*for*/
+      } /*Solve3*/
+
+  } /*ConsistencyCheck*/;
@@ -0,0 +1,483 @@
+package nz.gen.geek_central.screencalc;
+/*
+    Search for all screens with whole numbers of pixels that satisfy
+    given constraints on any of the parameters, e.g. “which resolutions
+    give 300–330 dpi on a 6.1–6.7 in diagonal at 19.5:9 or 20:9?”. Each
+    parameter may be restricted to a range or a set of ranges (or values),
+    or left free.
+
+    Rather than trying every combination of values, the bounds on the
+    parameters are narrowed by running the ordinary calculation rules on
+    them: every rule is monotonic in each of its arguments over positive
+    values, so the bounds on its result can be found by evaluating it at
+    the corners of the bounds on its arguments. This is repeated until
+    nothing more changes. The widths in pixels allowed by the resulting
+    bounds are then tried one at a time, the bounds being narrowed again
+    for each to find the heights in pixels allowed with it, and again for
+    each of those to see if there is still some pixel density that fits.
+    Once the pixel counts are fixed, everything else depends only on the
+    density, so each such combination is one configuration, reported with
+    the range of values each parameter can take in it. The widths are
+    divided among multiple threads.
+
+    There should be nothing Android-specific in this source file.
+
+    Copyright 2014 Lawrence D'Oliveiro <ldo@geek-central.gen.nz>.
+
+    This program is free software: you can redistribute it and/or
+    modify it under the terms of the GNU General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+    General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.ArrayList;
+import static nz.gen.geek_central.screencalc.Rules.FieldName;
+
+public class DesignSearch
+  {
+    public final Rules TheRules;
+    final RuleGraph Graph;
+
+    public double Tolerance = 1e-3;
+      /* relative tolerance for matching values given to AllowValue, other
+        than pixel counts, which must match exactly */
+    static final double Slop = 1e-12;
+      /* relative widening of computed bounds, to allow for rounding errors */
+    static final int MaxRounds = 50; /* limit on narrowing passes */
+
+    private final ArrayList<ArrayList<double[]>> Allowed = new ArrayList<ArrayList<double[]>>();
+      /* indexed by field ordinal, {Lo, Hi} ranges of allowed values; empty if unconstrained */
+
+    public DesignSearch
+      (
+        Rules TheRules
+      )
+      {
+        this.TheRules = TheRules;
+        Graph = TheRules.Graph;
+        for (int Field = 0; Field < RuleGraph.NrFields; ++Field)
+          {
+            Allowed.add(new ArrayList<double[]>());
+          } /*for*/
+      } /*DesignSearch*/
+
+    public void Allow
+      (
+        FieldName Name,
+        double Lo,
+        double Hi
+      )
+      /* adds [Lo, Hi] to the values allowed for the specified field, in
+        the canonical units used by Rules. Once any range has been given
+        for a field, it is restricted to the union of all those given. */
+      {
+        if (!(Lo > 0.0 && Lo <= Hi))
+          {
+            throw new IllegalArgumentException
+              (
+                String.format("invalid range %g .. %g for %s", Lo, Hi, Name.Name)
+              );
+          } /*if*/
+        Allowed.get(Name.ordinal()).add(new double[] {Lo, Hi});
+      } /*Allow*/
+
+    public void AllowValue
+      (
+        FieldName Name,
+        double Value
+      )
+      /* adds Value, give or take Tolerance, to the values allowed for the
+        specified field. */
+      {
+        if (TheRules.ParamDefs.get(Name).Type == Rules.ParamDef.ParamTypes.TYPE_PIXELS)
+          {
+            Allow(Name, Value, Value);
+          }
+        else
+          {
+            Allow(Name, Value * (1.0 - Tolerance), Value * (1.0 + Tolerance));
+          } /*if*/
+      } /*AllowValue*/
+
+    public static class Config
+      {
+      /* one feasible configuration found by the search. */
+        public final int WidthPixels, HeightPixels;
+        public final double[] Lo, Hi;
+          /* indexed by field ordinal, range of values each field can take */
+        public final ScreenParams Example;
+          /* all fields solved for a density in the middle of its range */
+
+        Config
+          (
+            int WidthPixels,
+            int HeightPixels,
+            double[] Lo,
+            double[] Hi,
+            ScreenParams Example
+          )
+          {
+            this.WidthPixels = WidthPixels;
+            this.HeightPixels = HeightPixels;
+            this.Lo = Lo;
+            this.Hi = Hi;
+            this.Example = Example;
+          } /*Config*/
+
+      } /*Config*/;
+
+    public interface Receiver
+      {
+
+        public void Found
+          (
+            Config TheConfig
+          );
+          /* called for each configuration found, possibly from several
+            threads at once, in no particular order. */
+
+      } /*Receiver*/;
+
+    boolean Narrow
+      (
+        double[] Lo,
+        double[] Hi,
+        ScreenParams Scratch /* for its argument buffers */
+      )
+      /* narrows the bounds in Lo and Hi as far as the rules allow, returning
+        false if they turn out to be empty. Bounds on pixel counts are
+        rounded inwards to whole numbers. */
+      {
+        boolean Feasible = true;
+        for (int Round = 0; Feasible && Round < MaxRounds; ++Round)
+          {
+            boolean Changed = false;
+            for (int RuleIndex = 0; Feasible && RuleIndex < Graph.NrRules; ++RuleIndex)
+              {
+                final int Target = Graph.RuleTarget[RuleIndex];
+                final int[] ArgOrdinals = Graph.RuleArgs[RuleIndex];
+                final double[] Args = Scratch.ArgBuf(ArgOrdinals.length);
+                double NewLo = Double.POSITIVE_INFINITY, NewHi = Double.NEGATIVE_INFINITY;
+                for (int Corner = 0; Corner < 1 << ArgOrdinals.length; ++Corner)
+                  {
+                    for (int i = 0; i < ArgOrdinals.length; ++i)
+                      {
+                        Args[i] = (Corner & 1 << i) != 0 ? Hi[ArgOrdinals[i]] : Lo[ArgOrdinals[i]];
+                      } /*for*/
+                    final double Value = Graph.RuleCalc[RuleIndex].Calculate(Args);
+                    if (Double.isNaN(Value))
+                      {
+                      /* e.g. infinity minus infinity, or square root of a negative:
+                        can't tell anything from this rule */
+                        NewLo = 0.0;
+                        NewHi = Double.POSITIVE_INFINITY;
+                        break;
+                      } /*if*/
+                    NewLo = Math.min(NewLo, Value);
+                    NewHi = Math.max(NewHi, Value);
+                  } /*for*/
+                NewLo *= 1.0 - Slop;
+                NewHi *= 1.0 + Slop;
+                if (NewLo > Lo[Target])
+                  {
+                    Changed = Changed || NewLo > Lo[Target] * (1.0 + Slop);
+                    Lo[Target] = NewLo;
+                  } /*if*/
+                if (NewHi < Hi[Target])
+                  {
+                    Changed = Changed || NewHi < Hi[Target] * (1.0 - Slop);
+                    Hi[Target] = NewHi;
+                  } /*if*/
+                if
+                  (
+                    TheRules.ParamDefs.get(RuleGraph.Fields[Target]).Type
+                ==
+                    Rules.ParamDef.ParamTypes.TYPE_PIXELS
+                  )
+                  {
+                    Lo[Target] = Math.ceil(Lo[Target] * (1.0 - Slop));
+                    Hi[Target] = Math.floor(Hi[Target] * (1.0 + Slop));
+                  } /*if*/
+                Feasible = Lo[Target] <= Hi[Target];
+              } /*for*/
+            if (!Changed)
+                break;
+          } /*for*/
+        return
+            Feasible;
+      } /*Narrow*/
+
+    static ArrayList<double[]> Merged
+      (
+        ArrayList<double[]> Ranges
+      )
+      /* returns Ranges sorted and with overlapping ones merged, so each
+        allowed value is in exactly one of them. */
+      {
+        final ArrayList<double[]> Sorted = new ArrayList<double[]>(Ranges);
+        java.util.Collections.sort
+          (
+            Sorted,
+            new java.util.Comparator<double[]>()
+              {
+                public int compare
+                  (
+                    double[] A,
+                    double[] B
+                  )
+                  {
+                    return
+                        Double.compare(A[0], B[0]);
+                  } /*compare*/
+              } /*Comparator*/
+          );
+        final ArrayList<double[]> Result = new ArrayList<double[]>();
+        for (double[] Range : Sorted)
+          {
+            final double[] Last = Result.size() != 0 ? Result.get(Result.size() - 1) : null;
+            if (Last != null && Range[0] <= Last[1])
+              {
+                Last[1] = Math.max(Last[1], Range[1]);
+              }
+            else
+              {
+                Result.add(Range.clone());
+              } /*if*/
+          } /*for*/
+        return
+            Result;
+      } /*Merged*/
+
+    boolean Allows
+      (
+        ScreenParams Params
+      )
+      /* are all the values in Params within the allowed ranges. */
+      {
+        boolean Result = true;
+        for (int Field = 0; Result && Field < RuleGraph.NrFields; ++Field)
+          {
+            final ArrayList<double[]> Ranges = Allowed.get(Field);
+            final double Value = Params.Values[Field];
+            Result = Ranges.size() == 0;
+            for (double[] Range : Ranges)
+              {
+                if (Value >= Range[0] * (1.0 - Slop) && Value <= Range[1] * (1.0 + Slop))
+                  {
+                    Result = true;
+                    break;
+                  } /*if*/
+              } /*for*/
+          } /*for*/
+        return
+            Result;
+      } /*Allows*/
+
+    class SearchTask implements java.util.concurrent.Callable<Long>
+      {
+      /* tries all the widths in pixels in a given range. */
+        final double[] Lo, Hi; /* bounds to start from */
+        final int FromWidth, ToWidth; /* inclusive */
+        final Receiver Results;
+
+        SearchTask
+          (
+            double[] Lo,
+            double[] Hi,
+            int FromWidth,
+            int ToWidth,
+            Receiver Results
+          )
+          {
+            this.Lo = Lo;
+            this.Hi = Hi;
+            this.FromWidth = FromWidth;
+            this.ToWidth = ToWidth;
+            this.Results = Results;
+          } /*SearchTask*/
+
+        public Long call()
+          {
+            final int WidthField = FieldName.WidthPixels.ordinal();
+            final int HeightField = FieldName.HeightPixels.ordinal();
+            final ScreenParams Scratch = new ScreenParams();
+            final double[] WidthLo = new double[RuleGraph.NrFields];
+            final double[] WidthHi = new double[RuleGraph.NrFields];
+            final double[] ConfigLo = new double[RuleGraph.NrFields];
+            final double[] ConfigHi = new double[RuleGraph.NrFields];
+            long NrFound = 0;
+            for (int Width = FromWidth; Width <= ToWidth; ++Width)
+              {
+                System.arraycopy(Lo, 0, WidthLo, 0, RuleGraph.NrFields);
+                System.arraycopy(Hi, 0, WidthHi, 0, RuleGraph.NrFields);
+                WidthLo[WidthField] = Width;
+                WidthHi[WidthField] = Width;
+                if (Narrow(WidthLo, WidthHi, Scratch))
+                  {
+                    if (Double.isInfinite(WidthHi[HeightField]))
+                      {
+                        throw new IllegalArgumentException("constraints do not limit the height in pixels");
+                      } /*if*/
+                    for
+                      (
+                        int Height = (int)WidthLo[HeightField];
+                        Height <= (int)WidthHi[HeightField];
+                        ++Height
+                      )
+                      {
+                        System.arraycopy(WidthLo, 0, ConfigLo, 0, RuleGraph.NrFields);
+                        System.arraycopy(WidthHi, 0, ConfigHi, 0, RuleGraph.NrFields);
+                        ConfigLo[HeightField] = Height;
+                        ConfigHi[HeightField] = Height;
+                        if (Narrow(ConfigLo, ConfigHi, Scratch))
+                          {
+                          /* check there really is a screen in there */
+                            final int DensityField = FieldName.PixelDensity.ordinal();
+                            final ScreenParams Example = new ScreenParams();
+                            Example.Set(FieldName.WidthPixels, Width);
+                            Example.Set(FieldName.HeightPixels, Height);
+                            Example.Set
+                              (
+                                FieldName.PixelDensity,
+                                Double.isInfinite(ConfigHi[DensityField]) ?
+                                    ConfigLo[DensityField] * 2.0
+                                :
+                                    (ConfigLo[DensityField] + ConfigHi[DensityField]) / 2.0
+                              );
+                            Graph.Solve(Example);
+                            if (Allows(Example))
+                              {
+                                Results.Found
+                                  (
+                                    new Config(Width, Height, ConfigLo.clone(), ConfigHi.clone(), Example)
+                                  );
+                                ++NrFound;
+                              } /*if*/
+                          } /*if*/
+                      } /*for*/
+                  } /*if*/
+              } /*for*/
+            return
+                NrFound;
+          } /*call*/
+
+      } /*SearchTask*/;
+
+    public long Search
+      (
+        Receiver Results,
+        int NrThreads
+      )
+    throws InterruptedException
+      /* finds all configurations satisfying the constraints, passing each
+        one to Results, and returns the number found. A configuration may
+        be found more than once, with different ranges of values, if the
+        allowed values for some field are in separate ranges which it
+        can reach with the same pixel counts. Throws IllegalArgumentException
+        if the constraints do not put an upper limit on the pixel counts. */
+      {
+      /* each combination of one allowed range for each field is searched
+        separately, so the bounds being narrowed are always a single box */
+        final ArrayList<ArrayList<double[]>> Ranges = new ArrayList<ArrayList<double[]>>();
+        for (int Field = 0; Field < RuleGraph.NrFields; ++Field)
+          {
+            ArrayList<double[]> FieldRanges = Merged(Allowed.get(Field));
+            if (FieldRanges.size() == 0)
+              {
+                FieldRanges.add(new double[] {0.0, Double.POSITIVE_INFINITY});
+              } /*if*/
+            Ranges.add(FieldRanges);
+          } /*for*/
+        final java.util.concurrent.ExecutorService Workers =
+            java.util.concurrent.Executors.newFixedThreadPool(NrThreads);
+        final ArrayList<java.util.concurrent.Future<Long>> Tasks =
+            new ArrayList<java.util.concurrent.Future<Long>>();
+        final ScreenParams Scratch = new ScreenParams();
+        final int[] Choice = new int[RuleGraph.NrFields]; /* index into Ranges for each field */
+        long NrFound = 0;
+        try
+          {
+            for (;;)
+              {
+                final double[] Lo = new double[RuleGraph.NrFields];
+                final double[] Hi = new double[RuleGraph.NrFields];
+                for (int Field = 0; Field < RuleGraph.NrFields; ++Field)
+                  {
+                    Lo[Field] = Ranges.get(Field).get(Choice[Field])[0];
+                    Hi[Field] = Ranges.get(Field).get(Choice[Field])[1];
+                  } /*for*/
+                if (Narrow(Lo, Hi, Scratch))
+                  {
+                    final int WidthField = FieldName.WidthPixels.ordinal();
+                    if (Double.isInfinite(Hi[WidthField]) || Hi[WidthField] > Integer.MAX_VALUE)
+                      {
+                        throw new IllegalArgumentException("constraints do not limit the width in pixels");
+                      } /*if*/
+                    final int FromWidth = (int)Math.max(Math.ceil(Lo[WidthField]), 1.0);
+                    final int ToWidth = (int)Hi[WidthField];
+                    final int ChunkSize = Math.max((ToWidth - FromWidth + 1) / (NrThreads * 8), 1);
+                    for (int Width = FromWidth; Width <= ToWidth; Width += ChunkSize)
+                      {
+                        Tasks.add
+                          (
+                            Workers.submit
+                              (
+                                new SearchTask
+                                  (
+                                    Lo, Hi,
+                                    Width, Math.min(Width + ChunkSize - 1, ToWidth),
+                                    Results
+                                  )
+                              )
+                          );
+                      } /*for*/
+                  } /*if*/
+              /* on to next combination of ranges */
+                int Field = 0;
+                for (;;)
+                  {
+                    if (Field == RuleGraph.NrFields)
+                        break;
+                    if (++Choice[Field] < Ranges.get(Field).size())
+                        break;
+                    Choice[Field] = 0;
+                    ++Field;
+                  } /*for*/
+                if (Field == RuleGraph.NrFields)
+                    break;
+              } /*for*/
+            for (java.util.concurrent.Future<Long> Task : Tasks)
+              {
+                try
+                  {
+                    NrFound += Task.get();
+                  }
+                catch (java.util.concurrent.ExecutionException Failed)
+                  {
+                    final Throwable Cause = Failed.getCause();
+                    throw
+                        Cause instanceof RuntimeException ?
+                            (RuntimeException)Cause
+                        :
+                            new RuntimeException(Cause);
+                  } /*try*/
+              } /*for*/
+          }
+        finally
+          {
+            Workers.shutdownNow();
+          } /*try*/
+        return
+            NrFound;
+      } /*Search*/
+
+  } /*DesignSearch*/;
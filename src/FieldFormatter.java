@@ -0,0 +1,286 @@
+package nz.gen.geek_central.screencalc;
+/*
+    Formatting of screen parameter values without allocation, for when
+    millions of them have to be written out. The output is the same as
+    Rules.FormatField has always produced with String.format: fixed
+    decimal places (2 for distances and ratios, 1 for densities, none
+    for pixels) rounded the same way, with the digits and decimal point
+    for the locale, followed by the unit suffix, or a ratio in the form
+    “numer:denom” as chosen by Rules.StrictRatios.
+
+    String.format rounds half up, but applies this to the shortest decimal
+    string that converts back to the same double (as from Double.toString),
+    not to its exact binary value. So for example 1.005, which is really
+    a little less than that, comes out as “1.01”. The only difference this
+    makes is when that decimal string ends in a 5 just past the last place
+    to be kept, which is so exactly when the halfway point between the two
+    candidates converts to the same double as the value being formatted.
+
+    Values too large to be handled with long arithmetic, as well as NaNs
+    and infinities, are passed to String.format as before.
+
+    There should be nothing Android-specific in this source file.
+
+    Copyright 2014 Lawrence D'Oliveiro <ldo@geek-central.gen.nz>.
+
+    This program is free software: you can redistribute it and/or
+    modify it under the terms of the GNU General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+    General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+*/
+
+import static nz.gen.geek_central.screencalc.Rules.FieldName;
+import static nz.gen.geek_central.screencalc.Rules.Units;
+
+public class FieldFormatter
+  {
+  /* not safe for concurrent use: the scratch buffer is reused between calls. */
+    public final Rules TheRules;
+    public final java.util.Locale TheLocale;
+    final char ZeroDigit, DecimalPoint;
+
+    static final double[] Pow10 = {1.0, 10.0, 100.0};
+    static final long[] LongPow10 = {1L, 10L, 100L};
+    static final double MaxScaled = 1e14;
+      /* beyond this (scaled by 10 ** places), doubles are too far apart
+        for only one decimal with one more place to convert to each */
+    static final String[] Formats = {"%.0f", "%.1f", "%.2f"}; /* for the fallback */
+
+    final char[] Buf = new char[320];
+      /* long enough for any output, even "%.2f" of Double.MAX_VALUE with a suffix */
+
+    public FieldFormatter
+      (
+        Rules TheRules,
+        java.util.Locale TheLocale
+      )
+      {
+        this.TheRules = TheRules;
+        this.TheLocale = TheLocale;
+        final java.text.DecimalFormatSymbols Symbols =
+            java.text.DecimalFormatSymbols.getInstance(TheLocale);
+        ZeroDigit = Symbols.getZeroDigit();
+        DecimalPoint = Symbols.getDecimalSeparator();
+      } /*FieldFormatter*/
+
+    public FieldFormatter
+      (
+        Rules TheRules
+      )
+      /* uses the same default locale as String.format. */
+      {
+        this(TheRules, java.util.Locale.getDefault());
+      } /*FieldFormatter*/
+
+    static int PutString
+      (
+        String Str,
+        char[] Into,
+        int Offset
+      )
+      {
+        Str.getChars(0, Str.length(), Into, Offset);
+        return
+            Offset + Str.length();
+      } /*PutString*/
+
+    int PutLong
+      (
+        long Value, /* must not be negative */
+        int MinDigits, /* pad with leading zeroes to at least this many */
+        char[] Into,
+        int Offset
+      )
+      /* puts the decimal digits of Value into Into at Offset, returning
+        the offset just past them. */
+      {
+        int NrDigits = 1;
+        for (long Rest = Value / 10; Rest != 0; Rest /= 10)
+          {
+            ++NrDigits;
+          } /*for*/
+        NrDigits = Math.max(NrDigits, MinDigits);
+        for (int i = Offset + NrDigits; i > Offset;)
+          {
+            Into[--i] = (char)(ZeroDigit + (int)(Value % 10));
+            Value /= 10;
+          } /*for*/
+        return
+            Offset + NrDigits;
+      } /*PutLong*/
+
+    int PutFixed
+      (
+        double Value,
+        int Places, /* [0 .. 2] */
+        char[] Into,
+        int Offset
+      )
+      /* puts the same characters into Into at Offset as String.format
+        would produce with a format of "%.«Places»f", returning the offset
+        just past them. */
+      {
+        final double Magnitude = Math.abs(Value);
+        final double Scaled = Magnitude * Pow10[Places];
+        if (Scaled < MaxScaled)
+          {
+            final long Truncated = (long)Scaled;
+            final double Halfway = (2 * Truncated + 1) / (2.0 * Pow10[Places]);
+              /* correctly rounded, being a quotient of exactly-representable integers */
+            final long Rounded = Magnitude >= Halfway ? Truncated + 1 : Truncated;
+              /* if Magnitude == Halfway, then the shortest decimal string for it
+                ends in a 5 just past the last place, and it rounds up */
+            if (Double.doubleToRawLongBits(Value) < 0)
+              {
+                Into[Offset++] = '-'; /* String.format doesn't localize this */
+              } /*if*/
+            Offset = PutLong(Rounded / LongPow10[Places], 1, Into, Offset);
+            if (Places != 0)
+              {
+                Into[Offset++] = DecimalPoint;
+                Offset = PutLong(Rounded % LongPow10[Places], Places, Into, Offset);
+              } /*if*/
+          }
+        else
+          {
+            Offset = PutString(String.format(TheLocale, Formats[Places], Value), Into, Offset);
+          } /*if*/
+        return
+            Offset;
+      } /*PutFixed*/
+
+    public int Format
+      (
+        FieldName Name,
+        double FieldValue,
+        Units CurUnits,
+        char[] Into,
+        int Offset
+      )
+      /* puts the formatted form of FieldValue into Into at Offset,
+        returning the offset just past it. */
+      {
+        double Multiplier = CurUnits == Units.UNITS_CM ? 1.0 : 1.0 / Rules.cm_per_in;
+        String Suffix = "";
+        int Places = 2;
+        final Rules.ParamDef.ParamTypes ParamType = TheRules.ParamDefs.get(Name).Type;
+        switch (ParamType)
+          {
+        case TYPE_RATIO:
+          /* handled specially below */
+        break;
+        case TYPE_DISTANCE:
+            Suffix = CurUnits == Units.UNITS_CM ? "cm" : "in";
+        break;
+        case TYPE_PIXELS:
+            Places = 0;
+            Multiplier = 1.0;
+        break;
+        case TYPE_DENSITY:
+            Places = 1;
+            switch (CurUnits)
+              {
+            case UNITS_CM:
+                Suffix = "dpcm";
+            break;
+            case UNITS_IN:
+                Multiplier = Rules.cm_per_in;
+                Suffix = "dpi";
+            break;
+              } /*switch*/
+        break;
+          } /*switch*/
+        if (ParamType == Rules.ParamDef.ParamTypes.TYPE_RATIO)
+          {
+            final String Common = TheRules.Ratios.CommonName(FieldValue);
+            if (Common != null)
+              {
+                Offset = PutString(Common, Into, Offset);
+              }
+            else
+              {
+                final long Ratio = NumberUseful.Fraction.FromRealPacked(FieldValue, TheRules.StrictRatios);
+                Offset = PutLong(Ratio >>> 32, 1, Into, Offset);
+                Into[Offset++] = ':';
+                Offset = PutLong(Ratio & 0xffffffffL, 1, Into, Offset);
+              } /*if*/
+          }
+        else
+          {
+            Offset = PutFixed(FieldValue * Multiplier, Places, Into, Offset);
+            Offset = PutString(Suffix, Into, Offset);
+          } /*if*/
+        return
+            Offset;
+      } /*Format*/
+
+    public StringBuilder Format
+      (
+        FieldName Name,
+        double FieldValue,
+        Units CurUnits,
+        StringBuilder Into
+      )
+      /* appends the formatted form of FieldValue to Into, and returns Into. */
+      {
+        Into.append(Buf, 0, Format(Name, FieldValue, CurUnits, Buf, 0));
+        return
+            Into;
+      } /*Format*/
+
+    public void Format
+      (
+        FieldName Name,
+        double FieldValue,
+        Units CurUnits,
+        java.nio.ByteBuffer Into
+      )
+      /* puts the UTF-8 encoding of the formatted form of FieldValue into Into
+        at its current position. Throws java.nio.BufferOverflowException if
+        there isn't room, in which case some of it may already be there. */
+      {
+        final int Length = Format(Name, FieldValue, CurUnits, Buf, 0);
+        for (int i = 0; i < Length; ++i)
+          {
+          /* no surrogates can occur */
+            final char Ch = Buf[i];
+            if (Ch < 0x80)
+              {
+                Into.put((byte)Ch);
+              }
+            else if (Ch < 0x800)
+              {
+                Into.put((byte)(0xc0 | Ch >> 6));
+                Into.put((byte)(0x80 | Ch & 0x3f));
+              }
+            else
+              {
+                Into.put((byte)(0xe0 | Ch >> 12));
+                Into.put((byte)(0x80 | Ch >> 6 & 0x3f));
+                Into.put((byte)(0x80 | Ch & 0x3f));
+              } /*if*/
+          } /*for*/
+      } /*Format*/
+
+    public String FormatField
+      (
+        FieldName Name,
+        double FieldValue,
+        Units CurUnits
+      )
+      /* returns the formatted form of FieldValue as a String. */
+      {
+        return
+            new String(Buf, 0, Format(Name, FieldValue, CurUnits, Buf, 0));
+      } /*FormatField*/
+
+  } /*FieldFormatter*/;
@@ -0,0 +1,176 @@
+package nz.gen.geek_central.screencalc;
+/*
+    Solving of one set of screen parameters that is edited a field at a
+    time, redoing only as much of the calculation as each edit affects.
+    For each computed field, this remembers which rule computed it.
+    After an edit, the plan for the new set of inputs is followed as
+    usual, but a step is only actually recalculated if it now uses a
+    different rule for its field, or if one of its arguments has changed
+    value. Fields whose recalculated value comes out exactly the same as
+    before don't count as changed either, so nothing downstream of them
+    is redone. The results are always identical to solving from scratch.
+
+    There should be nothing Android-specific in this source file.
+
+    Copyright 2014 Lawrence D'Oliveiro <ldo@geek-central.gen.nz>.
+
+    This program is free software: you can redistribute it and/or
+    modify it under the terms of the GNU General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+    General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+*/
+
+import static nz.gen.geek_central.screencalc.Rules.FieldName;
+
+public class IncrementalSolver
+  {
+  /* not safe for concurrent use. */
+    public final RuleGraph Graph;
+    public final ScreenParams Params = new ScreenParams();
+      /* current values: Known has the bits for both the inputs and the
+        computed fields, Computed just for the computed ones. Don't modify
+        directly, use SetInput and ClearInput instead. */
+
+    private int Inputs = 0; /* bits by field ordinal of fields given values by caller */
+    private int Edited = 0; /* inputs changed since last Update */
+    private final int[] Rule = new int[RuleGraph.NrFields];
+      /* index of rule last used to compute each field, -1 if not computed */
+
+    public int Changed = 0;
+      /* bits by field ordinal of fields whose values or known status were
+        changed by the last Update */
+    public int NrRecalculated = 0;
+      /* number of rule evaluations actually done by the last Update */
+
+    public IncrementalSolver
+      (
+        RuleGraph Graph
+      )
+      {
+        this.Graph = Graph;
+        java.util.Arrays.fill(Rule, -1);
+      } /*IncrementalSolver*/
+
+    public boolean IsInput
+      (
+        FieldName Name
+      )
+      {
+        return
+            (Inputs & 1 << Name.ordinal()) != 0;
+      } /*IsInput*/
+
+    public void SetInput
+      (
+        FieldName Name,
+        double Value
+      )
+      /* gives the specified field a value of its own, replacing any computed
+        one. Takes effect on the next Update. */
+      {
+        final int Field = Name.ordinal();
+        if
+          (
+                (Inputs & 1 << Field) == 0
+            ||
+                Double.doubleToLongBits(Params.Values[Field]) != Double.doubleToLongBits(Value)
+          )
+          {
+            Inputs |= 1 << Field;
+            Edited |= 1 << Field;
+            Params.Values[Field] = Value;
+            Rule[Field] = -1;
+          } /*if*/
+      } /*SetInput*/
+
+    public void ClearInput
+      (
+        FieldName Name
+      )
+      /* removes the value given to the specified field, if any, so it can
+        be computed from the others if possible. Takes effect on the next
+        Update. */
+      {
+        final int Field = Name.ordinal();
+        if ((Inputs & 1 << Field) != 0)
+          {
+            Inputs &= ~(1 << Field);
+            Edited |= 1 << Field;
+          } /*if*/
+      } /*ClearInput*/
+
+    public void ClearAll()
+      /* removes all inputs. Takes effect on the next Update. */
+      {
+        Edited |= Inputs;
+        Inputs = 0;
+      } /*ClearAll*/
+
+    public Rules.ComputeStatus Update()
+      /* brings the computed fields up to date with the inputs, setting
+        Changed to indicate which fields were affected. */
+      {
+        final RuleGraph.Plan ThePlan = Graph.GetPlan(Inputs);
+        final double[] Values = Params.Values;
+        final int OldKnown = Params.Known;
+        int Dirty = Edited; /* fields whose values may differ from before */
+        NrRecalculated = 0;
+        for (int Step = 0; Step < ThePlan.StepTarget.length; ++Step)
+          {
+            final int Target = ThePlan.StepTarget[Step];
+            final int RuleIndex = ThePlan.StepRule[Step];
+            final int[] ArgOrdinals = ThePlan.StepArgs[Step];
+            if
+              (
+                    Rule[Target] != RuleIndex
+                ||
+                    (OldKnown & 1 << Target) == 0
+                ||
+                    (ThePlan.StepArgMask[Step] & Dirty) != 0
+              )
+              {
+                final double[] Args = Params.ArgBuf(ArgOrdinals.length);
+                for (int i = 0; i < ArgOrdinals.length; ++i)
+                  {
+                    Args[i] = Values[ArgOrdinals[i]];
+                  } /*for*/
+                final double NewValue = ThePlan.StepCalc[Step].Calculate(Args);
+                ++NrRecalculated;
+                if
+                  (
+                        (OldKnown & 1 << Target) == 0
+                    ||
+                        Double.doubleToLongBits(Values[Target]) != Double.doubleToLongBits(NewValue)
+                  )
+                  {
+                    Dirty |= 1 << Target;
+                  } /*if*/
+                Values[Target] = NewValue;
+                Rule[Target] = RuleIndex;
+              } /*if*/
+          } /*for*/
+        for (int Field = 0; Field < RuleGraph.NrFields; ++Field)
+          {
+            if ((ThePlan.ComputedMask & 1 << Field) == 0)
+              {
+                Rule[Field] = -1;
+              } /*if*/
+          } /*for*/
+        Params.Known = Inputs | ThePlan.ComputedMask;
+        Params.Computed = ThePlan.ComputedMask;
+        Changed = (Dirty | OldKnown ^ Params.Known) & (Params.Known | OldKnown);
+        Edited = 0;
+        return
+            ThePlan.Status();
+      } /*Update*/
+
+  } /*IncrementalSolver*/;
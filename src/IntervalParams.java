@@ -0,0 +1,154 @@
+package nz.gen.geek_central.screencalc;
+/*
+    Primitive store for one set of screen parameters, each known one
+    given as a range of possible values rather than a single value, for
+    passing to IntervalSolver.
+
+    There should be nothing Android-specific in this source file.
+
+    Copyright 2014 Lawrence D'Oliveiro <ldo@geek-central.gen.nz>.
+
+    This program is free software: you can redistribute it and/or
+    modify it under the terms of the GNU General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+    General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+*/
+
+import static nz.gen.geek_central.screencalc.Rules.FieldName;
+
+public class IntervalParams
+  {
+    public final double[] Lo = new double[RuleGraph.NrFields];
+    public final double[] Hi = new double[RuleGraph.NrFields];
+      /* bounds on each value, indexed by FieldName.ordinal(), only
+        meaningful where the Known bit is set */
+    public int Known;
+      /* bits by FieldName.ordinal() of fields with valid values */
+    public int Computed;
+      /* bits by FieldName.ordinal() of fields filled in by the last solve */
+
+    public boolean IsKnown
+      (
+        FieldName Name
+      )
+      {
+        return
+            (Known & 1 << Name.ordinal()) != 0;
+      } /*IsKnown*/
+
+    public void Set
+      (
+        FieldName Name,
+        double Lo,
+        double Hi
+      )
+      {
+        this.Lo[Name.ordinal()] = Lo;
+        this.Hi[Name.ordinal()] = Hi;
+        Known |= 1 << Name.ordinal();
+      } /*Set*/
+
+    public void SetRelative
+      (
+        FieldName Name,
+        double Value,
+        double RelError
+      )
+      /* sets the field to Value, give or take RelError times Value. */
+      {
+        Set(Name, Value * (1.0 - RelError), Value * (1.0 + RelError));
+      } /*SetRelative*/
+
+    public void Clear
+      (
+        FieldName Name
+      )
+      {
+        Known &= ~(1 << Name.ordinal());
+        Computed &= ~(1 << Name.ordinal());
+      } /*Clear*/
+
+    public void ClearAll()
+      {
+        Known = 0;
+        Computed = 0;
+      } /*ClearAll*/
+
+    public double Mid
+      (
+        FieldName Name
+      )
+      {
+        return
+            (Lo[Name.ordinal()] + Hi[Name.ordinal()]) / 2.0;
+      } /*Mid*/
+
+    public double RelError
+      (
+        FieldName Name
+      )
+      /* returns half the width of the range for the field, relative to its
+        midpoint. */
+      {
+        return
+            (Hi[Name.ordinal()] - Lo[Name.ordinal()]) / (Hi[Name.ordinal()] + Lo[Name.ordinal()]);
+      } /*RelError*/
+
+    public static double RelRounding
+      (
+        String Text
+      )
+      /* returns the relative error implied by rounding the number at the
+        start of Text to the number of decimal places given, e.g. 0.05/15.6
+        for “15.6in”. Returns zero for ratios written as “numer:denom”,
+        which are taken as exact, and for anything not starting with a
+        number. Units are multiplicative, so converting them doesn't change
+        the relative error. */
+      {
+        Text = Text.trim();
+        int NumberEnd = 0;
+        int Places = 0;
+        boolean SeenPoint = false;
+        for (;;)
+          {
+            if (NumberEnd == Text.length())
+                break;
+            final char Ch = Text.charAt(NumberEnd);
+            if (Ch == '.' && !SeenPoint)
+              {
+                SeenPoint = true;
+              }
+            else if (Ch >= '0' && Ch <= '9')
+              {
+                if (SeenPoint)
+                  {
+                    ++Places;
+                  } /*if*/
+              }
+            else
+                break;
+            ++NumberEnd;
+          } /*for*/
+        double Result = 0.0;
+        if (Text.indexOf(':') < 0 && NumberEnd > (SeenPoint ? 1 : 0))
+          {
+            final double Number = Double.parseDouble(Text.substring(0, NumberEnd));
+            if (Number > 0.0)
+              {
+                Result = 0.5 * Math.pow(10.0, - Places) / Number;
+              } /*if*/
+          } /*if*/
+        return
+            Result;
+      } /*RelRounding*/
+
+  } /*IntervalParams*/;
@@ -0,0 +1,172 @@
+package nz.gen.geek_central.screencalc;
+/*
+    Solving of screen parameters given as ranges of values rather than
+    single values, so the uncertainty from inputs being rounded can be
+    carried through to the outputs. The same plan is followed as for
+    solving single values, only each step computes bounds on its result
+    from the bounds on its arguments. Every rule is monotonic in each of
+    its arguments, in the direction given by its Slopes, so the lower
+    bound on its result comes from evaluating it with each argument at
+    whichever of its own bounds is lower for that direction, and the
+    upper bound likewise. Thus two ordinary evaluations of each rule are
+    enough, and there is no need for separate interval versions of them.
+
+    The bounds computed are widened by a few units in the last place, to
+    allow for rounding errors in the calculations themselves, which are
+    only a few operations long.
+
+    There should be nothing Android-specific in this source file.
+
+    Copyright 2014 Lawrence D'Oliveiro <ldo@geek-central.gen.nz>.
+
+    This program is free software: you can redistribute it and/or
+    modify it under the terms of the GNU General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+    General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+*/
+
+public class IntervalSolver
+  {
+  /* not safe for concurrent use: the argument buffers are reused between calls. */
+    public final RuleGraph Graph;
+
+    static final double Widen = 4.0; /* units in the last place */
+
+    private final double[][] ArgBufs = new double[RuleGraph.NrFields + 1][];
+      /* indexed by number of arguments */
+    private final double[] RowLo = new double[RuleGraph.NrFields];
+    private final double[] RowHi = new double[RuleGraph.NrFields];
+      /* for bulk solving */
+
+    public IntervalSolver
+      (
+        RuleGraph Graph
+      )
+      {
+        this.Graph = Graph;
+        for (int NrArgs = 0; NrArgs < ArgBufs.length; ++NrArgs)
+          {
+            ArgBufs[NrArgs] = new double[NrArgs];
+          } /*for*/
+      } /*IntervalSolver*/
+
+    private int Step
+      (
+        RuleGraph.Plan ThePlan,
+        int Step,
+        double[] Lo,
+        double[] Hi
+      )
+      /* does the specified step of the plan, reading and writing bounds
+        in Lo and Hi indexed by field ordinal. Returns the ordinal of the
+        field computed. */
+      {
+        final int Rule = ThePlan.StepRule[Step];
+        final int[] ArgOrdinals = ThePlan.StepArgs[Step];
+        final int[] Slopes = Graph.RuleSlopes[Rule];
+        final Rules.CalcFunction Calc = ThePlan.StepCalc[Step];
+        final double[] Args = ArgBufs[ArgOrdinals.length];
+        for (int i = 0; i < ArgOrdinals.length; ++i)
+          {
+            Args[i] = Slopes[i] > 0 ? Lo[ArgOrdinals[i]] : Hi[ArgOrdinals[i]];
+          } /*for*/
+        double ResultLo = Calc.Calculate(Args);
+        for (int i = 0; i < ArgOrdinals.length; ++i)
+          {
+            Args[i] = Slopes[i] > 0 ? Hi[ArgOrdinals[i]] : Lo[ArgOrdinals[i]];
+          } /*for*/
+        double ResultHi = Calc.Calculate(Args);
+        if (Double.isNaN(ResultLo) && !Double.isNaN(ResultHi))
+          {
+          /* lower bound took a square root below zero: all values are positive */
+            ResultLo = 0.0;
+          } /*if*/
+        if (!Double.isInfinite(ResultLo))
+          {
+            ResultLo = Math.max(ResultLo - Widen * Math.ulp(ResultLo), 0.0);
+          } /*if*/
+        if (!Double.isInfinite(ResultHi))
+          {
+            ResultHi += Widen * Math.ulp(ResultHi);
+          } /*if*/
+        final int Target = ThePlan.StepTarget[Step];
+        Lo[Target] = ResultLo;
+        Hi[Target] = ResultHi;
+        return
+            Target;
+      } /*Step*/
+
+    public Rules.ComputeStatus Solve
+      (
+        IntervalParams Params
+      )
+      /* tries to fill in bounds for all missing parameters in Params from
+        those for the known ones. Params.Computed is set to the fields that
+        were actually computed. Does no allocation. */
+      {
+        final RuleGraph.Plan ThePlan = Graph.GetPlan(Params.Known);
+        for (int Step = 0; Step < ThePlan.StepTarget.length; ++Step)
+          {
+            Step(ThePlan, Step, Params.Lo, Params.Hi);
+          } /*for*/
+        Params.Known |= ThePlan.ComputedMask;
+        Params.Computed = ThePlan.ComputedMask;
+        return
+            ThePlan.Status();
+      } /*Solve*/
+
+    public void Solve
+      (
+        double[][] LoColumns,
+        double[][] HiColumns,
+          /* indexed by FieldName.ordinal(), then by row; computed bounds are
+            written back here */
+        int[] Known,
+          /* mask of known fields for each row, computed fields are added in */
+        int[] Computed,
+          /* optional, set to mask of fields computed for each row */
+        int From,
+        int To
+          /* range of rows to solve */
+      )
+      /* solves each row in [From, To) independently, as for the
+        IntervalParams version, without any allocation. */
+      {
+        final int NrFields = RuleGraph.NrFields;
+        final double[] Lo = RowLo;
+        final double[] Hi = RowHi;
+        for (int Row = From; Row < To; ++Row)
+          {
+            final RuleGraph.Plan ThePlan = Graph.GetPlan(Known[Row]);
+            if (ThePlan.StepTarget.length != 0)
+              {
+                for (int Field = 0; Field < NrFields; ++Field)
+                  {
+                    Lo[Field] = LoColumns[Field][Row];
+                    Hi[Field] = HiColumns[Field][Row];
+                  } /*for*/
+                for (int Step = 0; Step < ThePlan.StepTarget.length; ++Step)
+                  {
+                    final int Target = Step(ThePlan, Step, Lo, Hi);
+                    LoColumns[Target][Row] = Lo[Target];
+                    HiColumns[Target][Row] = Hi[Target];
+                  } /*for*/
+              } /*if*/
+            Known[Row] |= ThePlan.ComputedMask;
+            if (Computed != null)
+              {
+                Computed[Row] = ThePlan.ComputedMask;
+              } /*if*/
+          } /*for*/
+      } /*Solve*/
+
+  } /*IntervalSolver*/;
@@ -21,7 +21,6 @@ package nz.gen.geek_central.screencalc;
     <http://www.gnu.org/licenses/>.
 */
 
-import java.util.HashMap;
 import android.content.Intent;
 import android.view.View;
 import android.widget.TextView;
@@ -56,7 +55,14 @@ public class Main extends ActionActivity
 
     android.text.ClipboardManager Clipboard;
 
-    final Rules CurRules = new Rules();
+    Rules CurRules; /* set up in onCreate, once resources are available */
+    Units CurUnits = Units.UNITS_CM; /* no relevant locale setting? */
+    IncrementalSolver Solver;
+      /* holds the values entered and calculated so far. Also used as the
+        lock for itself and PendingChanged, since live calculation (below)
+        updates it on a background thread. */
+    int PendingChanged = 0;
+      /* bits by FieldName.ordinal() of fields whose display is out of date */
     final int[] UnitsButtons = new int[] {R.id.units_cm, R.id.units_in};
 
     static class FieldDef
@@ -75,55 +81,35 @@ public class Main extends ActionActivity
 
       } /*FieldDef*/;
 
-    static final HashMap<FieldName, FieldDef> FieldDefs = new HashMap<FieldName, FieldDef>();
+    static final FieldName[] Fields = FieldName.values(); /* so I don't keep allocating copies */
+
+    static final FieldDef[] FieldDefs = new FieldDef[Fields.length]; /* indexed by FieldName.ordinal() */
+    static
       {
-        FieldDefs.put
-          (
-            FieldName.HeightMeasure,
-            new FieldDef(R.id.height_measure, R.id.clear_height_measure)
-          );
-        FieldDefs.put
-          (
-            FieldName.WidthMeasure,
-            new FieldDef(R.id.width_measure, R.id.clear_width_measure)
-          );
-        FieldDefs.put
-          (
-            FieldName.DiagMeasure,
-            new FieldDef(R.id.diag_measure, R.id.clear_diag_measure)
-          );
-        FieldDefs.put
-          (
-            FieldName.PixelDensity,
-            new FieldDef(R.id.pixel_density, R.id.clear_pixel_density)
-          );
-        FieldDefs.put
-          (
-            FieldName.AspectRatio,
-            new FieldDef(R.id.aspect_ratio, R.id.clear_aspect_ratio)
-          );
-        FieldDefs.put
-          (
-            FieldName.ViewingDistance,
-            new FieldDef(R.id.viewing_distance, R.id.clear_viewing_distance)
-          );
-        FieldDefs.put
-          (
-            FieldName.HeightPixels,
-            new FieldDef(R.id.height_pixels, R.id.clear_height_pixels)
-          );
-        FieldDefs.put
-          (
-            FieldName.WidthPixels,
-            new FieldDef(R.id.width_pixels, R.id.clear_width_pixels)
-          );
-        FieldDefs.put
-          (
-            FieldName.TotalPixels,
-            new FieldDef(R.id.total_pixels, R.id.clear_total_pixels)
-          );
+        FieldDefs[FieldName.HeightMeasure.ordinal()] =
+            new FieldDef(R.id.height_measure, R.id.clear_height_measure);
+        FieldDefs[FieldName.WidthMeasure.ordinal()] =
+            new FieldDef(R.id.width_measure, R.id.clear_width_measure);
+        FieldDefs[FieldName.DiagMeasure.ordinal()] =
+            new FieldDef(R.id.diag_measure, R.id.clear_diag_measure);
+        FieldDefs[FieldName.PixelDensity.ordinal()] =
+            new FieldDef(R.id.pixel_density, R.id.clear_pixel_density);
+        FieldDefs[FieldName.AspectRatio.ordinal()] =
+            new FieldDef(R.id.aspect_ratio, R.id.clear_aspect_ratio);
+        FieldDefs[FieldName.ViewingDistance.ordinal()] =
+            new FieldDef(R.id.viewing_distance, R.id.clear_viewing_distance);
+        FieldDefs[FieldName.HeightPixels.ordinal()] =
+            new FieldDef(R.id.height_pixels, R.id.clear_height_pixels);
+        FieldDefs[FieldName.WidthPixels.ordinal()] =
+            new FieldDef(R.id.width_pixels, R.id.clear_width_pixels);
+        FieldDefs[FieldName.TotalPixels.ordinal()] =
+            new FieldDef(R.id.total_pixels, R.id.clear_total_pixels);
       }
 
+  /* view bindings for each field, indexed by FieldName.ordinal(), resolved once in onCreate */
+    final EditText[] FieldViews = new EditText[Fields.length];
+    final View[] ClearButtons = new View[Fields.length];
+
     private static class FieldState
       {
         public static enum States
@@ -163,64 +149,79 @@ public class Main extends ActionActivity
 
           } /*States*/;
 
-        public final States State;
-        public final String Value;
-
-        public FieldState
-          (
-            States State,
-            String Value
-          )
-          {
-            this.State = State;
-            this.Value = Value;
-          } /*FieldState*/
-
       } /*FieldState*/;
 
-    final HashMap<FieldName, FieldState> FieldStates = new HashMap<FieldName, FieldState>();
+  /* current state of each field, indexed by FieldName.ordinal() */
+    final FieldState.States[] FieldStates = new FieldState.States[Fields.length];
+    final String[] FieldValues = new String[Fields.length];
 
     private int ColorValidValue, ColorUnknownValue, ColorErrorValue;
 
+  /* counts of view updates done and skipped by SetField, for checking
+    how much redisplay work is being saved; logged on each pause */
+    int NrTextUpdates = 0, NrTextUpdatesSkipped = 0;
+    int NrStateUpdates = 0, NrStateUpdatesSkipped = 0;
+
     private void SetField
       (
         FieldName Name,
         FieldState.States NewState,
         String NewValue /* optional */
       )
+      /* puts the specified field into the specified state, with the specified
+        contents. Only touches the views if this actually makes a difference,
+        since any change can trigger a relayout. */
       {
-        final FieldDef TheField = FieldDefs.get(Name);
-        final EditText EditField = (EditText)findViewById(TheField.FieldID);
-        int FieldColor = ColorErrorValue;
-        switch (NewState)
-          {
-        case STATE_INPUT:
-            FieldColor = ColorUnknownValue;
-        break;
-        case STATE_VALID:
-            FieldColor = ColorValidValue;
-        break;
-        case STATE_ERROR:
-            FieldColor = ColorErrorValue;
-        break;
-          } /*switch*/
+        final EditText EditField = FieldViews[Name.ordinal()];
         if (NewValue != null)
           {
-            EditField.setText(NewValue);
+            if (!android.text.TextUtils.equals(EditField.getText(), NewValue))
+              {
+                SettingField = true;
+                EditField.setText(NewValue);
+                SettingField = false;
+                ++NrTextUpdates;
+              }
+            else
+              {
+                ++NrTextUpdatesSkipped;
+              } /*if*/
           }
         else
           {
             NewValue = EditField.getText().toString(); /* keep existing value */
           } /*if*/
-        EditField.setBackgroundColor(FieldColor);
-        EditField.setFocusable(NewState != FieldState.States.STATE_VALID);
-        EditField.setFocusableInTouchMode(NewState != FieldState.States.STATE_VALID);
-        findViewById(TheField.ClearButtonID)
-            .setVisibility
-              (
-                NewState == FieldState.States.STATE_VALID ? View.VISIBLE : View.INVISIBLE
-              );
-        FieldStates.put(Name, new FieldState(NewState, NewValue));
+        if (NewState != FieldStates[Name.ordinal()])
+          {
+            int FieldColor = ColorErrorValue;
+            switch (NewState)
+              {
+            case STATE_INPUT:
+                FieldColor = ColorUnknownValue;
+            break;
+            case STATE_VALID:
+                FieldColor = ColorValidValue;
+            break;
+            case STATE_ERROR:
+                FieldColor = ColorErrorValue;
+            break;
+              } /*switch*/
+            EditField.setBackgroundColor(FieldColor);
+            EditField.setFocusable(NewState != FieldState.States.STATE_VALID);
+            EditField.setFocusableInTouchMode(NewState != FieldState.States.STATE_VALID);
+            ClearButtons[Name.ordinal()]
+                .setVisibility
+                  (
+                    NewState == FieldState.States.STATE_VALID ? View.VISIBLE : View.INVISIBLE
+                  );
+            FieldStates[Name.ordinal()] = NewState;
+            ++NrStateUpdates;
+          }
+        else
+          {
+            ++NrStateUpdatesSkipped;
+          } /*if*/
+        FieldValues[Name.ordinal()] = NewValue;
       } /*SetField*/
 
     private void SetUnknown
@@ -237,7 +238,7 @@ public class Main extends ActionActivity
         double NewValue
       )
       {
-        SetField(Name, FieldState.States.STATE_VALID, CurRules.FormatField(Name, NewValue));
+        SetField(Name, FieldState.States.STATE_VALID, CurRules.FormatField(Name, NewValue, CurUnits));
       } /*SetValid*/
 
     private void SetValid
@@ -257,6 +258,258 @@ public class Main extends ActionActivity
         SetField(Name, FieldState.States.STATE_ERROR, null);
       } /*SetError*/
 
+  /*
+    Live calculation: when enabled, a calculation is triggered after a
+    short pause in typing into any field. The parsing, solving and
+    formatting are done on a background thread; each new calculation, as
+    well as each synchronous one triggered by a button, bumps the
+    generation number, so a background calculation that has been
+    overtaken can tell it is no longer wanted and give up, and its
+    results are never shown. Only the fields whose values have changed
+    are updated in the UI, and fields the user is typing into are never
+    overwritten or locked.
+  */
+
+    static final int LiveCalcDelay = 300; /* milliseconds to wait after last keystroke */
+
+    boolean LiveCalc = false;
+    boolean SettingField = false; /* to ignore my own changes to field contents */
+    volatile int CalcGeneration = 0; /* only changed on UI thread */
+    final android.os.Handler UIThread = new android.os.Handler();
+    java.util.concurrent.ExecutorService CalcExecutor;
+    java.util.concurrent.Future<?> LiveCalcTask = null;
+    android.view.MenuItem LiveCalcItem;
+
+    private void CancelLiveCalc()
+      /* stops any pending or running live calculation from having any
+        further effect. Must be called before any synchronous use of Solver
+        in response to user actions. */
+      {
+        UIThread.removeCallbacks(StartLiveCalc);
+        ++CalcGeneration;
+        if (LiveCalcTask != null)
+          {
+            LiveCalcTask.cancel(false);
+            LiveCalcTask = null;
+          } /*if*/
+      } /*CancelLiveCalc*/
+
+    private void ScheduleLiveCalc()
+      /* (re)starts the wait for a pause in typing before doing the next
+        live calculation. */
+      {
+        if (LiveCalc)
+          {
+            UIThread.removeCallbacks(StartLiveCalc);
+            UIThread.postDelayed(StartLiveCalc, LiveCalcDelay);
+          } /*if*/
+      } /*ScheduleLiveCalc*/
+
+    private final Runnable StartLiveCalc =
+        new Runnable()
+          {
+            public void run()
+              {
+                CancelLiveCalc();
+                final String[] FieldStrs = new String[Fields.length];
+                  /* contents of editable fields, null for the rest */
+                for (FieldName Name : Fields)
+                  {
+                    if (FieldStates[Name.ordinal()] != FieldState.States.STATE_VALID)
+                      {
+                        FieldStrs[Name.ordinal()] =
+                            FieldViews[Name.ordinal()].getText().toString();
+                      } /*if*/
+                  } /*for*/
+                LiveCalcTask =
+                    CalcExecutor.submit(new LiveCalculation(CalcGeneration, FieldStrs, CurUnits));
+              } /*run*/
+          } /*Runnable*/;
+
+    private class LiveCalculation implements Runnable
+      {
+        final int Generation;
+        final String[] FieldStrs;
+        final Units ParseUnits;
+
+        public LiveCalculation
+          (
+            int Generation,
+            String[] FieldStrs,
+            Units ParseUnits
+          )
+          {
+            this.Generation = Generation;
+            this.FieldStrs = FieldStrs;
+            this.ParseUnits = ParseUnits;
+          } /*LiveCalculation*/
+
+        public void run()
+          {
+            final double[] Values = new double[Fields.length];
+            final String[] Formatted = new String[Fields.length];
+            int ToShow = 0, Known = 0, Computed = 0, Errors = 0;
+            synchronized (Solver)
+              {
+                if (Generation == CalcGeneration)
+                  {
+                    for (FieldName Name : Fields)
+                      {
+                        final String FieldStr = FieldStrs[Name.ordinal()];
+                        if (FieldStr != null)
+                          {
+                            if (FieldStr.length() != 0)
+                              {
+                                try
+                                  {
+                                    Solver.SetInput
+                                      (
+                                        Name,
+                                        CurRules.ParamDefs.get(Name).Parse.Parse(FieldStr, ParseUnits)
+                                      );
+                                  }
+                                catch (NumberFormatException Bad)
+                                  {
+                                    Solver.ClearInput(Name);
+                                    Errors |= 1 << Name.ordinal();
+                                  } /*try*/
+                              }
+                            else
+                              {
+                                Solver.ClearInput(Name);
+                              } /*if*/
+                          } /*if*/
+                      } /*for*/
+                    UpdateSolver();
+                    ToShow = PendingChanged;
+                    Known = Solver.Params.Known;
+                    Computed = Solver.Params.Computed;
+                    System.arraycopy(Solver.Params.Values, 0, Values, 0, Values.length);
+                  } /*if*/
+              } /*synchronized*/
+          /* formatting can be slow, so do it without holding up the UI thread */
+            for (FieldName Name : Fields)
+              {
+                if (Generation != CalcGeneration)
+                    break;
+                if ((ToShow & Known & 1 << Name.ordinal()) != 0)
+                  {
+                    Formatted[Name.ordinal()] =
+                        CurRules.FormatField(Name, Values[Name.ordinal()], ParseUnits);
+                  } /*if*/
+              } /*for*/
+            if (Generation == CalcGeneration)
+              {
+                final int FieldsToShow = ToShow, KnownFields = Known, ComputedFields = Computed;
+                final int ErrorFields = Errors;
+                UIThread.post
+                  (
+                    new Runnable()
+                      {
+                        public void run()
+                          {
+                            if (Generation == CalcGeneration)
+                              {
+                                ShowLiveResults
+                                  (
+                                    FieldStrs,
+                                    Formatted,
+                                    FieldsToShow,
+                                    KnownFields,
+                                    ComputedFields,
+                                    ErrorFields
+                                  );
+                              } /*if*/
+                          } /*run*/
+                      } /*Runnable*/
+                  );
+              } /*if*/
+          } /*run*/
+
+      } /*LiveCalculation*/;
+
+    private void ShowLiveResults
+      (
+        String[] FieldStrs, /* as passed to LiveCalculation */
+        String[] Formatted, /* new values for the fields in ToShow */
+        int ToShow,
+        int Known,
+        int Computed,
+        int Errors
+          /* all bits by FieldName.ordinal() */
+      )
+      /* called on the UI thread with the results from an up-to-date LiveCalculation. */
+      {
+        int Shown = 0;
+        final View Focused = getCurrentFocus();
+        for (FieldName Name : Fields)
+          {
+            final int Bit = 1 << Name.ordinal();
+            final View EditField = FieldViews[Name.ordinal()];
+            final boolean Editable = FieldStrs[Name.ordinal()] != null;
+            if ((Errors & Bit) != 0)
+              {
+                SetError(Name);
+              }
+            else if (Editable && FieldStates[Name.ordinal()] == FieldState.States.STATE_ERROR)
+              {
+                SetField(Name, FieldState.States.STATE_INPUT, null);
+              } /*if*/
+            if ((ToShow & Bit) != 0)
+              {
+                if ((Computed & Bit) != 0 ? EditField != Focused : (Known & Bit) != 0 && !Editable)
+                  {
+                    SetValid(Name, Formatted[Name.ordinal()]);
+                    Shown |= Bit;
+                  }
+                else if ((Known & Bit) == 0 && !Editable)
+                  {
+                    SetUnknown(Name);
+                    Shown |= Bit;
+                  } /*if*/
+              } /*if*/
+          } /*for*/
+        synchronized (Solver)
+          {
+            PendingChanged &= ~Shown; /* leave the rest for the next calculation */
+          } /*synchronized*/
+      } /*ShowLiveResults*/
+
+    private class LiveCalcWatcher implements android.text.TextWatcher
+      {
+        public void beforeTextChanged
+          (
+            CharSequence Text,
+            int Start,
+            int Count,
+            int After
+          )
+          {
+          } /*beforeTextChanged*/
+
+        public void onTextChanged
+          (
+            CharSequence Text,
+            int Start,
+            int Before,
+            int Count
+          )
+          {
+          } /*onTextChanged*/
+
+        public void afterTextChanged
+          (
+            android.text.Editable Text
+          )
+          {
+            if (!SettingField)
+              {
+                ScheduleLiveCalc();
+              } /*if*/
+          } /*afterTextChanged*/
+
+      } /*LiveCalcWatcher*/;
+
     private class FieldClearAction implements View.OnClickListener
       {
         final FieldName Field;
@@ -274,14 +527,74 @@ public class Main extends ActionActivity
             View ClearButton
           )
           {
+            CancelLiveCalc();
             SetUnknown(Field);
+            synchronized (Solver)
+              {
+                if (Solver.IsInput(Field))
+                  {
+                  /* only the values that depended on this one need redoing */
+                    Solver.ClearInput(Field);
+                    UpdateSolver();
+                  }
+                else
+                  {
+                  /* still computed from the others, so the solver won't report
+                    it as changed: make sure the next calculation puts its value
+                    back in the blanked-out field */
+                    PendingChanged |= 1 << Field.ordinal();
+                  } /*if*/
+                ShowResults(~(1 << Field.ordinal()));
+              } /*synchronized*/
           } /*onClick*/
 
       } /*FieldClearAction*/;
 
+    private Rules.ComputeStatus UpdateSolver()
+      /* brings Solver up to date, noting which fields will need redisplaying.
+        Must be called with Solver locked. */
+      {
+        final Rules.ComputeStatus Result = Solver.Update();
+        PendingChanged |= Solver.Changed;
+        return
+            Result;
+      } /*UpdateSolver*/
+
+    private void ShowResults
+      (
+        int Which /* bits by FieldName.ordinal() */
+      )
+      /* updates the display of those of the specified fields that are out of
+        date from the values in Solver. Must be called with Solver locked. */
+      {
+        Which &= PendingChanged;
+        PendingChanged &= ~Which;
+        for (FieldName Name : Fields)
+          {
+            if ((Which & 1 << Name.ordinal()) != 0)
+              {
+                if (Solver.Params.IsKnown(Name))
+                  {
+                    SetValid(Name, Solver.Params.Get(Name));
+                  }
+                else if (FieldStates[Name.ordinal()] != FieldState.States.STATE_ERROR)
+                  {
+                    SetUnknown(Name);
+                  } /*if*/
+              } /*if*/
+          } /*for*/
+      } /*ShowResults*/
+
     private void ClearAll()
       {
-        for (FieldName Field : FieldName.values())
+        CancelLiveCalc();
+        synchronized (Solver)
+          {
+            Solver.ClearAll();
+            Solver.Update();
+            PendingChanged = 0;
+          } /*synchronized*/
+        for (FieldName Field : Fields)
           {
             SetUnknown(Field);
           } /*for*/
@@ -365,16 +678,31 @@ public class Main extends ActionActivity
             getWindow().requestFeature(android.view.Window.FEATURE_CUSTOM_TITLE);
           } /*if*/
         setContentView(R.layout.main);
+        for (FieldName Name : Fields)
+          {
+            final FieldDef TheField = FieldDefs[Name.ordinal()];
+            FieldViews[Name.ordinal()] = (EditText)findViewById(TheField.FieldID);
+            ClearButtons[Name.ordinal()] = findViewById(TheField.ClearButtonID);
+          } /*for*/
         Clipboard = (android.text.ClipboardManager)getSystemService(CLIPBOARD_SERVICE);
           {
             final android.content.res.Resources Res = getResources();
             ColorValidValue = Res.getColor(R.color.valid_value);
             ColorUnknownValue = Res.getColor(R.color.unknown_value);
             ColorErrorValue = Res.getColor(R.color.error_value);
+            final CharSequence[] CommonRatios = Res.getTextArray(R.array.common_aspect_ratios);
+            final String[] RatioStrs = new String[CommonRatios.length];
+            for (int i = 0; i < CommonRatios.length; ++i)
+              {
+                RatioStrs[i] = CommonRatios[i].toString();
+              } /*for*/
+            CurRules = new Rules(new NumberUseful.FractionTable(RatioStrs));
+            Solver = new IncrementalSolver(CurRules.Graph);
           }
+        CalcExecutor = java.util.concurrent.Executors.newSingleThreadExecutor();
           {
             final android.widget.AutoCompleteTextView Aspect =
-                (android.widget.AutoCompleteTextView)findViewById(R.id.aspect_ratio);
+                (android.widget.AutoCompleteTextView)FieldViews[FieldName.AspectRatio.ordinal()];
             Aspect.setAdapter
               (
                 android.widget.ArrayAdapter.createFromResource
@@ -386,11 +714,11 @@ public class Main extends ActionActivity
               );
             Aspect.setThreshold(1);
           }
-        for (FieldName Name : FieldName.values())
+        for (FieldName Name : Fields)
           {
-            registerForContextMenu(findViewById(FieldDefs.get(Name).FieldID));
-            findViewById(FieldDefs.get(Name).ClearButtonID)
-                .setOnClickListener(new FieldClearAction(Name));
+            registerForContextMenu(FieldViews[Name.ordinal()]);
+            FieldViews[Name.ordinal()].addTextChangedListener(new LiveCalcWatcher());
+            ClearButtons[Name.ordinal()].setOnClickListener(new FieldClearAction(Name));
           } /*for*/
         for (final int UnitsID : UnitsButtons)
           {
@@ -405,7 +733,12 @@ public class Main extends ActionActivity
                         View TheButton
                       )
                       {
-                        CurRules.CurUnits = UnitsID == R.id.units_cm ? Units.UNITS_CM : Units.UNITS_IN;
+                        CurUnits = UnitsID == R.id.units_cm ? Units.UNITS_CM : Units.UNITS_IN;
+                        synchronized (Solver)
+                          {
+                            PendingChanged = RuleGraph.AllFields; /* reformat everything */
+                          } /*synchronized*/
+                        ScheduleLiveCalc();
                       } /*onClick*/
                   } /*View.OnClickListener*/
               );
@@ -413,7 +746,7 @@ public class Main extends ActionActivity
               {
                 ThisButton.setChecked
                   (
-                    UnitsID == (CurRules.CurUnits == Units.UNITS_CM ? R.id.units_cm : R.id.units_in)
+                    UnitsID == (CurUnits == Units.UNITS_CM ? R.id.units_cm : R.id.units_in)
                   );
               } /*if*/
           } /*for*/
@@ -439,40 +772,46 @@ public class Main extends ActionActivity
                     View TheButton
                   )
                   {
-                    final HashMap<FieldName, Double> Known = new HashMap<FieldName, Double>();
-                    for (FieldName Name : FieldName.values())
+                    CancelLiveCalc();
+                    Rules.ComputeStatus Status;
+                    synchronized (Solver)
                       {
-                        Double FieldValue = null;
-                        final String FieldStr =
-                            ((TextView)findViewById(FieldDefs.get(Name).FieldID)).getText().toString();
-                        if (FieldStr.length() != 0)
+                      /* only fields that are still editable can have changed since
+                        the last calculation, so only those need to be looked at */
+                        for (FieldName Name : Fields)
                           {
-                            try
-                              {
-                                FieldValue = CurRules.ParamDefs.get(Name).Parse.Parse(FieldStr);
-                              }
-                            catch (NumberFormatException Bad)
+                            if (FieldStates[Name.ordinal()] != FieldState.States.STATE_VALID)
                               {
-                                System.err.printf("Screencalc parse error for field “%s”: %s\n", Name, Bad.toString()); /* debug */
-                                SetError(Name);
-                              } /*try*/
-                          }
-                        else
-                          {
-                            SetUnknown(Name);
-                          } /*if*/
-                        if (FieldValue != null)
-                          {
-                            SetValid(Name, FieldValue);
-                            Known.put(Name, FieldValue);
-                          } /*if*/
-                      } /*for*/
-                    final java.util.HashSet<FieldName> Computed = new java.util.HashSet<FieldName>();
-                    final Rules.ComputeStatus Status = CurRules.ComputeParams(Known, Computed);
-                    for (FieldName Name : Computed)
-                      {
-                        SetValid(Name, Known.get(Name));
-                      } /*for*/
+                                final String FieldStr =
+                                    FieldViews[Name.ordinal()].getText().toString();
+                                if (FieldStr.length() != 0)
+                                  {
+                                    try
+                                      {
+                                        Solver.SetInput
+                                          (
+                                            Name,
+                                            CurRules.ParamDefs.get(Name).Parse.Parse(FieldStr, CurUnits)
+                                          );
+                                        PendingChanged |= 1 << Name.ordinal();
+                                      }
+                                    catch (NumberFormatException Bad)
+                                      {
+                                        System.err.printf("Screencalc parse error for field “%s”: %s\n", Name, Bad.toString()); /* debug */
+                                        SetError(Name);
+                                        Solver.ClearInput(Name);
+                                      } /*try*/
+                                  }
+                                else
+                                  {
+                                    SetUnknown(Name);
+                                    Solver.ClearInput(Name);
+                                  } /*if*/
+                              } /*if*/
+                          } /*for*/
+                        Status = UpdateSolver();
+                        ShowResults(RuleGraph.AllFields);
+                      } /*synchronized*/
                     if (Status != Rules.ComputeStatus.COMPUTE_DONE)
                       {
                         android.widget.Toast.makeText
@@ -521,6 +860,32 @@ public class Main extends ActionActivity
           } /*if*/
       } /*onPostCreate*/
 
+    @Override
+    public void onPause()
+      {
+        android.util.Log.d
+          (
+            "ScreenCalc",
+            String.format
+              (
+                "view updates: text %d done, %d skipped; state %d done, %d skipped",
+                NrTextUpdates,
+                NrTextUpdatesSkipped,
+                NrStateUpdates,
+                NrStateUpdatesSkipped
+              )
+          );
+        super.onPause();
+      } /*onPause*/
+
+    @Override
+    public void onDestroy()
+      {
+        CancelLiveCalc();
+        CalcExecutor.shutdown();
+        super.onDestroy();
+      } /*onDestroy*/
+
     @Override
     protected void OnCreateOptionsMenu()
       {
@@ -538,6 +903,32 @@ public class Main extends ActionActivity
                       } /*run*/
                   } /*Runnable*/
           );
+        AddOptionsMenuItem
+          (
+            /*StringID =*/ R.string.live_calc,
+            /*IconID =*/ 0,
+            /*ActionBarUsage =*/ android.view.MenuItem.SHOW_AS_ACTION_NEVER,
+            /*Action =*/
+                new Runnable()
+                  {
+                    public void run()
+                      {
+                        LiveCalc = !LiveCalc;
+                        LiveCalcItem.setChecked(LiveCalc);
+                        if (LiveCalc)
+                          {
+                            ScheduleLiveCalc();
+                          }
+                        else
+                          {
+                            CancelLiveCalc();
+                          } /*if*/
+                      } /*run*/
+                  } /*Runnable*/
+          );
+        LiveCalcItem = TheOptionsMenu.getItem(TheOptionsMenu.size() - 1);
+        LiveCalcItem.setCheckable(true);
+        LiveCalcItem.setChecked(LiveCalc);
       } /*OnCreateOptionsMenu*/
 
     @Override
@@ -546,16 +937,16 @@ public class Main extends ActionActivity
         android.os.Bundle ToSave
       )
       {
-        ToSave.putBoolean("CurUnits", CurRules.CurUnits == Units.UNITS_CM);
-        for (FieldName Name : FieldName.values())
+        ToSave.putBoolean("CurUnits", CurUnits == Units.UNITS_CM);
+        ToSave.putBoolean("LiveCalc", LiveCalc);
+        for (FieldName Name : Fields)
           {
-            final FieldState ThisField = FieldStates.get(Name);
-            ToSave.putInt(Name.Name + ".state", ThisField.State.Val);
+            ToSave.putInt(Name.Name + ".state", FieldStates[Name.ordinal()].Val);
             ToSave.putString
               (
                 Name.Name + ".value",
-                ((TextView)findViewById(FieldDefs.get(Name).FieldID)).getText().toString()
-                  /* ignore ThisField.Value in case it's out of date */
+                FieldViews[Name.ordinal()].getText().toString()
+                  /* ignore FieldValues in case it's out of date */
               );
           } /*for*/
         super.onSaveInstanceState(ToSave);
@@ -568,15 +959,15 @@ public class Main extends ActionActivity
       )
       {
         super.onRestoreInstanceState(ToRestore);
-        CurRules.CurUnits = ToRestore.getBoolean("CurUnits") ? Units.UNITS_CM : Units.UNITS_IN;
+        CurUnits = ToRestore.getBoolean("CurUnits") ? Units.UNITS_CM : Units.UNITS_IN;
         for (int UnitsID : UnitsButtons)
           {
             ((android.widget.RadioButton)findViewById(UnitsID)).setChecked
               (
-                UnitsID == (CurRules.CurUnits == Units.UNITS_CM ? R.id.units_cm : R.id.units_in)
+                UnitsID == (CurUnits == Units.UNITS_CM ? R.id.units_cm : R.id.units_in)
               );
           } /*for*/
-        for (FieldName Name : FieldName.values())
+        for (FieldName Name : Fields)
           {
             final String FieldValue =
                 ToRestore.containsKey(Name.Name + ".value") ?
@@ -593,6 +984,34 @@ public class Main extends ActionActivity
                 FieldValue
               );
           } /*for*/
+        LiveCalc = ToRestore.getBoolean("LiveCalc");
+      /* recreate the solver state from the restored field contents, treating
+        all valid values as inputs */
+        CancelLiveCalc();
+        synchronized (Solver)
+          {
+            Solver.ClearAll();
+            for (FieldName Name : Fields)
+              {
+                if (FieldStates[Name.ordinal()] == FieldState.States.STATE_VALID)
+                  {
+                    try
+                      {
+                        Solver.SetInput
+                          (
+                            Name,
+                            CurRules.ParamDefs.get(Name).Parse.Parse(FieldValues[Name.ordinal()], CurUnits)
+                          );
+                      }
+                    catch (NumberFormatException Bad)
+                      {
+                        SetError(Name);
+                      } /*try*/
+                  } /*if*/
+              } /*for*/
+            Solver.Update();
+            PendingChanged = 0; /* display is already up to date */
+          } /*synchronized*/
       } /*onRestoreInstanceState*/
 
     public void ShowHelp
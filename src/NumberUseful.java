@@ -113,21 +113,58 @@ public class NumberUseful
                 Numer * 1.0 / Denom;
           } /*ToReal*/
 
+        public static final double Tolerance = Math.pow(10, -2);
+          /* max relative error allowed by FromReal and FromRealSimplest */
+
+        static boolean WithinTolerance
+          (
+            long Numer,
+            long Denom,
+            double Val
+          )
+          {
+            return
+                Math.abs((Numer * 1.0 / Denom - Val) / Val) <= Tolerance;
+          } /*WithinTolerance*/
+
+        private static final int StartDenom = (int)Math.round
+          (
+            Math.pow(3240 /* something with lots of factors */, Math.ceil(2 / Math.log10(3240)))
+          );
+          /* initial denominator for FromReal, enough for 2 decimal places */
+
         public static Fraction FromReal
           (
             double Val
           )
+          /* returns a fraction within Tolerance of Val, found by reducing
+            the nearest multiple of 1/StartDenom, then repeatedly looking
+            for a smaller denominator within a limited window around the
+            current candidate. This is how ratios have always been
+            displayed: it keeps exact values like 17:10 as they are, even
+            where FromRealSimplest would find a simpler fraction further
+            away. */
           {
-            final int Multiplier = 3240; /* something with lots of factors */
-            final int Places = 2; /* decimal places of precision needed */
-            final double RangeFactor = 1.0; /* how far to look */
-            final double Tol = Math.pow(10, - Places);
+            final long Packed = FromRealPacked(Val);
+            return
+                new Fraction((int)(Packed >>> 32), (int)Packed);
+          } /*FromReal*/
 
-            int Denom = (int)Math.round
-              (
-                Math.pow(Multiplier, Math.ceil(Places / Math.log10(Multiplier)))
-              );
+        public static long FromRealPacked
+          (
+            double Val
+          )
+          /* same as FromReal, but without allocating: returns the numerator
+            in the upper 32 bits of the result and the denominator in the
+            lower 32 bits. */
+          {
+            final double Tol = Tolerance;
+            int Denom = StartDenom;
             int Numer = (int)Math.round(Val * Denom);
+            if (Numer <= 0)
+              {
+                throw new IllegalArgumentException("can only approximate positive values");
+              } /*if*/
               {
                 final int GCD = gcd(Numer, Denom);
                 Numer /= GCD;
@@ -137,10 +174,11 @@ public class NumberUseful
               {
                 int BestNumer = Numer;
                 int BestDenom = Denom;
-                final double DeltaILow = Val * (1 - Tol) * Denom - Numer;
-                final double DeltaIHigh = Val * (1 + Tol) * Denom - Numer;
-                final int ILow = Math.max(Numer + (int)Math.floor(DeltaILow * RangeFactor), 1);
-                final int IHigh = Numer + (int)Math.ceil(DeltaIHigh * RangeFactor);
+                final int ILow = Math.max(Numer + (int)Math.floor(Val * (1 - Tol) * Denom - Numer), 1);
+                final int IHigh = Numer + (int)Math.ceil(Val * (1 + Tol) * Denom - Numer);
+              /* the window of denominators is the same for every numerator */
+                final int JLow = Math.max((int)Math.floor(Denom + (Numer / (Val * (1 + Tol)) - Denom)), 1);
+                final int JHigh = (int)Math.ceil(Denom + (Numer / (Val * (1 - Tol)) - Denom));
                 boolean IAscending = false;
                 for (int i = Numer;;)
                   {
@@ -151,10 +189,6 @@ public class NumberUseful
                         i = Numer + 1;
                         IAscending = true;
                       } /*if*/
-                    final double DeltaJLow = Numer / (Val * (1 + Tol)) - Denom;
-                    final double DeltaJHigh = Numer / (Val * (1 - Tol)) - Denom;
-                    final int JLow = Math.max((int)Math.floor(Denom + DeltaJLow * RangeFactor), 1);
-                    final int JHigh = (int)Math.ceil(Denom + DeltaJHigh);
                     boolean JAscending = false;
                     for (int j = Denom;;)
                       {
@@ -193,9 +227,309 @@ public class NumberUseful
                 Numer = BestNumer;
               } /*for*/
             return
-                new Fraction(Numer, Denom);
+                (long)Numer << 32 | Denom;
+          } /*FromRealPacked*/
+
+        public static Fraction FromRealSimplest
+          (
+            double Val
+          )
+          /* returns the fraction with the smallest denominator that is
+            within Tolerance of Val. This never has a larger denominator
+            than FromReal, and is often smaller, but is not necessarily the
+            closest: e.g. 12:7 rather than 17:10 for 1.7. */
+          {
+            final long Packed = FromRealSimplestPacked(Val);
+            return
+                new Fraction((int)(Packed >>> 32), (int)Packed);
+          } /*FromRealSimplest*/
+
+        public static long FromRealSimplestPacked
+          (
+            double Val
+          )
+          /* same as FromRealSimplest, but packed like FromRealPacked. This is
+            found by walking down the Stern-Brocot tree towards Val, taking
+            each run of steps in the same direction (corresponding to one
+            term of the continued fraction for Val) in a single search rather
+            than one at a time. */
+          {
+            if (!(Val > 0.0) || Double.isInfinite(Val))
+              {
+                throw new IllegalArgumentException("can only approximate finite positive values");
+              } /*if*/
+          /* current bounds are LeftNumer/LeftDenom < Val < RightNumer/RightDenom */
+            long LeftNumer = 0, LeftDenom = 1, RightNumer = 1, RightDenom = 0;
+            long Numer, Denom;
+            for (;;)
+              {
+                Numer = LeftNumer + RightNumer;
+                Denom = LeftDenom + RightDenom;
+                if (WithinTolerance(Numer, Denom, Val))
+                    break;
+                final boolean GoRight = Numer * 1.0 / Denom < Val;
+              /* successive nodes in this direction are (Near + k * Far) for k = 1, 2, ...,
+                approaching Val from one side until one of them is close enough
+                or crosses over. Find the first such k by doubling then bisection. */
+                final long NearNumer = GoRight ? LeftNumer : RightNumer;
+                final long NearDenom = GoRight ? LeftDenom : RightDenom;
+                final long FarNumer = GoRight ? RightNumer : LeftNumer;
+                final long FarDenom = GoRight ? RightDenom : LeftDenom;
+                long KLow = 1; /* known not to stop */
+                long KHigh = 2;
+                for (;;)
+                  {
+                    if (NearDenom + KHigh * FarDenom > Integer.MAX_VALUE || NearNumer + KHigh * FarNumer > Integer.MAX_VALUE)
+                      {
+                        throw new IllegalArgumentException("value out of range for fraction");
+                      } /*if*/
+                    if (StopsAt(NearNumer + KHigh * FarNumer, NearDenom + KHigh * FarDenom, Val, GoRight))
+                        break;
+                    KLow = KHigh;
+                    KHigh *= 2;
+                  } /*for*/
+                while (KHigh - KLow > 1)
+                  {
+                    final long KMid = (KLow + KHigh) / 2;
+                    if (StopsAt(NearNumer + KMid * FarNumer, NearDenom + KMid * FarDenom, Val, GoRight))
+                      {
+                        KHigh = KMid;
+                      }
+                    else
+                      {
+                        KLow = KMid;
+                      } /*if*/
+                  } /*while*/
+                Numer = NearNumer + KHigh * FarNumer;
+                Denom = NearDenom + KHigh * FarDenom;
+                if (WithinTolerance(Numer, Denom, Val))
+                    break;
+              /* crossed over Val: node KLow becomes the near bound, node KHigh the far one */
+                final long NewNearNumer = NearNumer + KLow * FarNumer;
+                final long NewNearDenom = NearDenom + KLow * FarDenom;
+                if (GoRight)
+                  {
+                    LeftNumer = NewNearNumer;
+                    LeftDenom = NewNearDenom;
+                    RightNumer = Numer;
+                    RightDenom = Denom;
+                  }
+                else
+                  {
+                    RightNumer = NewNearNumer;
+                    RightDenom = NewNearDenom;
+                    LeftNumer = Numer;
+                    LeftDenom = Denom;
+                  } /*if*/
+              } /*for*/
+            return
+                Numer << 32 | Denom;
+          } /*FromRealSimplestPacked*/
+
+        public static Fraction FromReal
+          (
+            double Val,
+            boolean Strict
+          )
+          /* FromReal if Strict, else FromRealSimplest. */
+          {
+            return
+                Strict ? FromReal(Val) : FromRealSimplest(Val);
           } /*FromReal*/
 
+        public static long FromRealPacked
+          (
+            double Val,
+            boolean Strict
+          )
+          /* FromRealPacked if Strict, else FromRealSimplestPacked. */
+          {
+            return
+                Strict ? FromRealPacked(Val) : FromRealSimplestPacked(Val);
+          } /*FromRealPacked*/
+
+        private static boolean StopsAt
+          (
+            long Numer,
+            long Denom,
+            double Val,
+            boolean GoingRight
+          )
+          /* is the node Numer/Denom, approached from the left if GoingRight
+            or from the right if not, either close enough to Val or on the
+            other side of it. */
+          {
+            final double NodeVal = Numer * 1.0 / Denom;
+            return
+                    WithinTolerance(Numer, Denom, Val)
+                ||
+                    (GoingRight ? NodeVal >= Val : NodeVal <= Val);
+          } /*StopsAt*/
+
       } /*Fraction*/;
 
+    public static class FractionTable
+      {
+      /* a fixed set of canonical Fraction instances for commonly-used
+        values, for looking up without having to go through
+        Fraction.FromReal or Fraction.FromString. Lookup by value returns
+        the nearest entry within Fraction.Tolerance, even if FromReal would
+        give a different fraction in that range, on the grounds that the
+        commonly-used one is what the user expects to see. */
+
+        private final double[] Values; /* in ascending order */
+        private final Fraction[] Entries; /* corresponding to Values */
+        private final String[] Names; /* canonical string forms of Entries */
+        private final java.util.HashMap<String, Fraction> ByName; /* keyed by Names */
+
+        public static final FractionTable Common = new FractionTable
+          (
+            new String[]
+              /* same as res/values/common_aspect_ratios.xml, which Main loads
+                instead; this is the only copy for use outside Android */
+                {
+                    "9:16", "3:5", "5:8", "9:14", "2:3", "3:4", "1:1",
+                    "4:3", "3:2", "14:9", "8:5", "5:3", "16:9",
+                }
+          );
+
+        public FractionTable
+          (
+            String[] Ratios
+          )
+          /* builds a table from strings in any form acceptable to
+            Fraction.FromString. */
+          {
+            final java.util.TreeMap<Double, Fraction> Sorted = new java.util.TreeMap<Double, Fraction>();
+            ByName = new java.util.HashMap<String, Fraction>();
+            for (String Ratio : Ratios)
+              {
+                Fraction ThisRatio = Fraction.FromString(Ratio);
+                final Fraction Already = Sorted.get(ThisRatio.ToReal());
+                if (Already != null)
+                  {
+                    ThisRatio = Already; /* intern */
+                  }
+                else
+                  {
+                    Sorted.put(ThisRatio.ToReal(), ThisRatio);
+                  } /*if*/
+              } /*for*/
+            Values = new double[Sorted.size()];
+            Entries = new Fraction[Sorted.size()];
+            Names = new String[Sorted.size()];
+            int i = 0;
+            for (java.util.Map.Entry<Double, Fraction> Entry : Sorted.entrySet())
+              {
+                Values[i] = Entry.getKey();
+                Entries[i] = Entry.getValue();
+                Names[i] = Entry.getValue().toString();
+                ByName.put(Names[i], Entries[i]);
+                ++i;
+              } /*for*/
+          } /*FractionTable*/
+
+        public Fraction[] GetEntries()
+          /* returns a copy of the table entries, in ascending order of value. */
+          {
+            return
+                Entries.clone();
+          } /*GetEntries*/
+
+        private int IndexOf
+          (
+            double Val
+          )
+          /* returns the index of the entry nearest to Val if it is within
+            Fraction.Tolerance, else -1. */
+          {
+            int Low = 0, High = Values.length;
+            while (Low < High)
+              {
+                final int Mid = (Low + High) >>> 1;
+                if (Values[Mid] < Val)
+                  {
+                    Low = Mid + 1;
+                  }
+                else
+                  {
+                    High = Mid;
+                  } /*if*/
+              } /*while*/
+          /* Values[Low - 1] < Val <= Values[Low] */
+            int Result = -1;
+            double BestError = Fraction.Tolerance;
+            for (int i = Math.max(Low - 1, 0); i <= Math.min(Low, Values.length - 1); ++i)
+              {
+                final double Error = Math.abs((Values[i] - Val) / Val);
+                if (Error <= BestError)
+                  {
+                    Result = i;
+                    BestError = Error;
+                  } /*if*/
+              } /*for*/
+            return
+                Result;
+          } /*IndexOf*/
+
+        public Fraction Find
+          (
+            double Val
+          )
+          /* returns the table entry within Fraction.Tolerance of Val,
+            or null if there is none. */
+          {
+            final int Index = IndexOf(Val);
+            return
+                Index >= 0 ? Entries[Index] : null;
+          } /*Find*/
+
+        public Fraction Get
+          (
+            String Name
+          )
+          /* returns the table entry with the given canonical string form,
+            or null if there is none. */
+          {
+            return
+                ByName.get(Name);
+          } /*Get*/
+
+        public Fraction FromReal
+          (
+            double Val
+          )
+          /* returns a table entry if one is close enough, else falls back
+            to Fraction.FromReal. */
+          {
+            final int Index = IndexOf(Val);
+            return
+                Index >= 0 ? Entries[Index] : Fraction.FromReal(Val);
+          } /*FromReal*/
+
+        public String CommonName
+          (
+            double Val
+          )
+          /* returns the string form of the table entry for Val if there is
+            one close enough, else null. */
+          {
+            final int Index = IndexOf(Val);
+            return
+                Index >= 0 ? Names[Index] : null;
+          } /*CommonName*/
+
+        public String Format
+          (
+            double Val
+          )
+          /* returns the string form of FromReal(Val). */
+          {
+            final int Index = IndexOf(Val);
+            return
+                Index >= 0 ? Names[Index] : Fraction.FromReal(Val).toString();
+          } /*Format*/
+
+      } /*FractionTable*/;
+
   } /*NumberUseful*/;
@@ -0,0 +1,190 @@
+package nz.gen.geek_central.screencalc;
+/*
+    Spreading of a BulkSolver job across multiple threads: the rows are
+    split into ranges, and each range is solved on a separate task by a
+    BulkSolver belonging to the thread running it. Each row is solved
+    independently of all the others, so the results are exactly the same
+    as solving everything on one thread.
+
+    There should be nothing Android-specific in this source file.
+
+    Copyright 2014 Lawrence D'Oliveiro <ldo@geek-central.gen.nz>.
+
+    This program is free software: you can redistribute it and/or
+    modify it under the terms of the GNU General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+    General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+public class ParallelBulkSolver
+  {
+  /* safe to share between threads, as long as each call is given its
+    own columns to work on. */
+
+    public static final int DefaultSplitSize = 65536;
+
+    public final RuleGraph Graph;
+    public final int SplitSize; /* max number of rows to give to each task */
+    private final ExecutorService Executor;
+
+    private final ThreadLocal<BulkSolver> Solvers =
+        new ThreadLocal<BulkSolver>()
+          {
+            @Override
+            protected BulkSolver initialValue()
+              {
+                return
+                    new BulkSolver(Graph);
+              } /*initialValue*/
+          } /*ThreadLocal*/;
+
+    private static ExecutorService SharedExecutor = null;
+
+    private static synchronized ExecutorService GetSharedExecutor()
+      /* pool of daemon threads, one per processor, for use when the caller
+        doesn't supply an executor. */
+      {
+        if (SharedExecutor == null)
+          {
+            SharedExecutor = java.util.concurrent.Executors.newFixedThreadPool
+              (
+                Runtime.getRuntime().availableProcessors(),
+                new java.util.concurrent.ThreadFactory()
+                  {
+                    public Thread newThread
+                      (
+                        Runnable Task
+                      )
+                      {
+                        final Thread Result = new Thread(Task, "ParallelBulkSolver");
+                        Result.setDaemon(true);
+                        return
+                            Result;
+                      } /*newThread*/
+                  } /*ThreadFactory*/
+              );
+          } /*if*/
+        return
+            SharedExecutor;
+      } /*GetSharedExecutor*/
+
+    public ParallelBulkSolver
+      (
+        RuleGraph Graph,
+        int SplitSize,
+        ExecutorService Executor /* optional */
+      )
+      {
+        if (SplitSize <= 0)
+          {
+            throw new IllegalArgumentException("SplitSize must be positive");
+          } /*if*/
+        this.Graph = Graph;
+        this.SplitSize = SplitSize;
+        this.Executor = Executor != null ? Executor : GetSharedExecutor();
+      } /*ParallelBulkSolver*/
+
+    public ParallelBulkSolver
+      (
+        RuleGraph Graph
+      )
+      {
+        this(Graph, DefaultSplitSize, null);
+      } /*ParallelBulkSolver*/
+
+    public void Solve
+      (
+        final double[][] Columns,
+          /* indexed by FieldName.ordinal(), then by row; computed values are
+            written back here */
+        final int[] Known,
+          /* mask of known fields for each row, computed fields are added in */
+        final int[] Computed,
+          /* optional, set to mask of fields computed for each row */
+        int From,
+        int To
+          /* range of rows to solve */
+      )
+      /* does the same as BulkSolver.Solve, only spread across the executor. */
+      {
+        if (To - From <= SplitSize)
+          {
+            Solvers.get().Solve(Columns, Known, Computed, From, To);
+          }
+        else
+          {
+            final ArrayList<Future<Object>> Tasks = new ArrayList<Future<Object>>();
+            for (long Start = From; Start < To; Start += SplitSize)
+              {
+              /* long so the last chunk end cannot overflow */
+                final int RangeFrom = (int)Start;
+                final int RangeTo = (int)Math.min(Start + SplitSize, (long)To);
+                Tasks.add
+                  (
+                    Executor.submit
+                      (
+                        new Callable<Object>()
+                          {
+                            public Object call()
+                              {
+                                Solvers.get().Solve(Columns, Known, Computed, RangeFrom, RangeTo);
+                                return
+                                    null;
+                              } /*call*/
+                          } /*Callable*/
+                      )
+                  );
+              } /*for*/
+            try
+              {
+                for (Future<Object> Task : Tasks)
+                  {
+                    Task.get();
+                  } /*for*/
+              }
+            catch (InterruptedException Interrupted)
+              {
+                for (Future<Object> Task : Tasks)
+                  {
+                    Task.cancel(true);
+                  } /*for*/
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("bulk solve interrupted");
+              }
+            catch (java.util.concurrent.ExecutionException Failed)
+              {
+                if (Failed.getCause() instanceof RuntimeException)
+                  {
+                    throw (RuntimeException)Failed.getCause();
+                  } /*if*/
+                throw new RuntimeException("bulk solve failed", Failed.getCause());
+              } /*try*/
+          } /*if*/
+      } /*Solve*/
+
+    public void Solve
+      (
+        double[][] Columns,
+        int[] Known,
+        int[] Computed
+      )
+      /* solves all the rows. */
+      {
+        Solve(Columns, Known, Computed, 0, Known.length);
+      } /*Solve*/
+
+  } /*ParallelBulkSolver*/;
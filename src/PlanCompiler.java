@@ -0,0 +1,496 @@
+package nz.gen.geek_central.screencalc;
+/*
+    Turning of RuleGraph plans into generated classes, one for each
+    combination of known fields actually used. RuleGraph.Solve makes all
+    its calls to the rule functions from the one place, so once a range
+    of different input combinations has gone through it, the JIT sees
+    too many different implementations there to inline any of them. The
+    generated Kernel for a plan instead does each step as a separate
+    call to Rules.Evaluate, with a constant opcode and the arguments
+    picked out by constant indexes, so once the call is inlined, the JIT
+    can drop all but the one formula, and the plan compiles down to
+    straight-line arithmetic. Rules with formulas not in the rule table
+    get a separate call to their CalcFunction instead, which only ever
+    sees the one implementation, so it can be inlined just the same.
+
+    The class files are put together directly here, rather than
+    depending on a bytecode library. They use no branches, so they need
+    only the oldest class file format, without stack maps.
+
+    This only works on a JVM. Dalvik cannot load class files, in which
+    case GetKernel returns null and Solve falls back to RuleGraph.Solve,
+    so it is safe to use anywhere.
+
+    There should be nothing Android-specific in this source file.
+
+    Copyright 2014 Lawrence D'Oliveiro <ldo@geek-central.gen.nz>.
+
+    This program is free software: you can redistribute it and/or
+    modify it under the terms of the GNU General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+    General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+public class PlanCompiler
+  {
+  /* like RuleGraph, safe to share between threads: kernels are generated
+    one at a time, but looked up without locking. */
+
+    public interface Kernel
+      {
+
+        public void Solve
+          (
+            double[] Values
+          );
+          /* does all the steps of the plan in turn, reading and writing
+            Values indexed by field ordinal. */
+
+      } /*Kernel*/;
+
+    public final RuleGraph Graph;
+    private final Kernel[] Kernels = new Kernel[RuleGraph.AllFields + 1];
+      /* indexed by known mask */
+    private volatile boolean Unsupported = false;
+      /* set once generated classes turn out not to load */
+    private final KernelLoader Loader = new KernelLoader();
+
+    private static class KernelLoader extends ClassLoader
+      {
+
+        KernelLoader()
+          {
+            super(PlanCompiler.class.getClassLoader());
+          } /*KernelLoader*/
+
+        Class<?> Define
+          (
+            String ClassName,
+            byte[] ClassFile
+          )
+          {
+            return
+                defineClass(ClassName, ClassFile, 0, ClassFile.length);
+          } /*Define*/
+
+      } /*KernelLoader*/;
+
+    public PlanCompiler
+      (
+        RuleGraph Graph
+      )
+      {
+        this.Graph = Graph;
+      } /*PlanCompiler*/
+
+    static final String ThisPackage = "nz/gen/geek_central/screencalc/";
+    static final String CalcFunctionClass = ThisPackage + "Rules$CalcFunction";
+    static final String CalcFunctionsType = "[L" + CalcFunctionClass + ";";
+    static final String KernelClass = ThisPackage + "PlanCompiler$Kernel";
+
+    private static class ClassWriter
+      /* just enough of the class file format for generating kernels. */
+      {
+        final ByteArrayOutputStream ConstantBytes = new ByteArrayOutputStream();
+        final DataOutputStream Constants = new DataOutputStream(ConstantBytes);
+        int NrConstants = 0;
+        final java.util.HashMap<String, Integer> ConstantIndex = new java.util.HashMap<String, Integer>();
+
+        private int Constant
+          (
+            String Key, /* unique description of the entry */
+            int Tag,
+            String Utf8, /* for Tag 1 only */
+            int Ref1,
+            int Ref2 /* -1 if Tag only needs one */
+          )
+        throws IOException
+          {
+            Integer Index = ConstantIndex.get(Key);
+            if (Index == null)
+              {
+                Constants.writeByte(Tag);
+                if (Utf8 != null)
+                  {
+                    Constants.writeUTF(Utf8);
+                  }
+                else
+                  {
+                    Constants.writeShort(Ref1);
+                    if (Ref2 >= 0)
+                      {
+                        Constants.writeShort(Ref2);
+                      } /*if*/
+                  } /*if*/
+                Index = ++NrConstants;
+                ConstantIndex.put(Key, Index);
+              } /*if*/
+            return
+                Index;
+          } /*Constant*/
+
+        int Utf8
+          (
+            String Value
+          )
+        throws IOException
+          {
+            return
+                Constant("U" + Value, 1, Value, 0, -1);
+          } /*Utf8*/
+
+        int ClassRef
+          (
+            String Name
+          )
+        throws IOException
+          {
+            return
+                Constant("C" + Name, 7, null, Utf8(Name), -1);
+          } /*ClassRef*/
+
+        int MemberRef
+          (
+            int Tag, /* 9 for field, 10 for method, 11 for interface method */
+            String ClassName,
+            String Name,
+            String Descriptor
+          )
+        throws IOException
+          {
+            final int NameAndType =
+                Constant("N" + Name + " " + Descriptor, 12, null, Utf8(Name), Utf8(Descriptor));
+            return
+                Constant
+                  (
+                    "M" + Tag + ClassName + "." + Name + " " + Descriptor,
+                    Tag,
+                    null,
+                    ClassRef(ClassName),
+                    NameAndType
+                  );
+          } /*MemberRef*/
+
+      } /*ClassWriter*/;
+
+    private static class CodeWriter
+      {
+        final ByteArrayOutputStream Bytes = new ByteArrayOutputStream();
+
+        void Op
+          (
+            int OpCode
+          )
+          {
+            Bytes.write(OpCode);
+          } /*Op*/
+
+        void Op
+          (
+            int OpCode,
+            int Operand /* 2-byte */
+          )
+          {
+            Bytes.write(OpCode);
+            Bytes.write(Operand >> 8);
+            Bytes.write(Operand);
+          } /*Op*/
+
+        void PushInt
+          (
+            int Value /* only small nonnegative values needed */
+          )
+          {
+            if (Value <= 5)
+              {
+                Op(0x03 + Value); /* iconst_<n> */
+              }
+            else
+              {
+                Bytes.write(0x10); /* bipush */
+                Bytes.write(Value);
+              } /*if*/
+          } /*PushInt*/
+
+        void Local
+          (
+            int OpCode, /* the general form, e.g. aload */
+            int Index
+          )
+          {
+            Bytes.write(OpCode);
+            Bytes.write(Index);
+          } /*Local*/
+
+        void WriteTo
+          (
+            ClassWriter Class,
+            DataOutputStream Out,
+            int MaxStack,
+            int MaxLocals
+          )
+        throws IOException
+          /* writes out a Code attribute for this code. */
+          {
+            Out.writeShort(Class.Utf8("Code"));
+            Out.writeInt(12 + Bytes.size());
+            Out.writeShort(MaxStack);
+            Out.writeShort(MaxLocals);
+            Out.writeInt(Bytes.size());
+            Bytes.writeTo(Out);
+            Out.writeShort(0); /* exception table length */
+            Out.writeShort(0); /* attributes count */
+          } /*WriteTo*/
+
+      } /*CodeWriter*/;
+
+    static byte[] GenerateKernel
+      (
+        String ClassName, /* internal form, with slashes */
+        RuleGraph.Plan ThePlan
+      )
+    throws IOException
+      /* generates a class implementing Kernel for the specified plan. Its
+        constructor takes the array of functions to call at each step,
+        which should be ThePlan.StepCalc. */
+      {
+        final ClassWriter Class = new ClassWriter();
+        final int ThisClass = Class.ClassRef(ClassName);
+        final int SuperClass = Class.ClassRef("java/lang/Object");
+        final int Interface = Class.ClassRef(KernelClass);
+        final int FieldRef = Class.MemberRef(9, ClassName, "Calc", CalcFunctionsType);
+        final int ObjectInit = Class.MemberRef(10, "java/lang/Object", "<init>", "()V");
+        final int Calculate = Class.MemberRef(11, CalcFunctionClass, "Calculate", "([D)D");
+        final int Evaluate = Class.MemberRef(10, ThisPackage + "Rules", "Evaluate", "(IDD)D");
+        final CodeWriter Init = new CodeWriter();
+        Init.Op(0x2a); /* aload_0 */
+        Init.Op(0xb7, ObjectInit); /* invokespecial */
+        Init.Op(0x2a); /* aload_0 */
+        Init.Op(0x2b); /* aload_1 */
+        Init.Op(0xb5, FieldRef); /* putfield */
+        Init.Op(0xb1); /* return */
+      /* locals for Solve: 0 = this, 1 = Values, 2 = Calc, 3 onwards = an
+        argument array for each number of arguments needed */
+        final int CalcLocal = 2;
+        final int[] ArgsLocal = new int[RuleGraph.NrFields + 1];
+        int NrLocals = 3;
+        final CodeWriter Solve = new CodeWriter();
+        Solve.Op(0x2a); /* aload_0 */
+        Solve.Op(0xb4, FieldRef); /* getfield */
+        Solve.Local(0x3a, CalcLocal); /* astore */
+        for (int Step = 0; Step < ThePlan.StepTarget.length; ++Step)
+          {
+            final int NrArgs = ThePlan.StepArgs[Step].length;
+            if (ThePlan.StepOp[Step] < 0 && ArgsLocal[NrArgs] == 0)
+              {
+                ArgsLocal[NrArgs] = NrLocals++;
+                Solve.PushInt(NrArgs);
+                Solve.Local(0xbc, 7); /* newarray double */
+                Solve.Local(0x3a, ArgsLocal[NrArgs]); /* astore */
+              } /*if*/
+          } /*for*/
+        for (int Step = 0; Step < ThePlan.StepTarget.length; ++Step)
+          {
+            final int[] ArgOrdinals = ThePlan.StepArgs[Step];
+            final int Op = ThePlan.StepOp[Step];
+            if (Op >= 0)
+              {
+              /* Values[Target] = Rules.Evaluate(Op, Values[Arg0], Values[Arg1] or 0) */
+                Solve.Op(0x2b); /* aload_1 */
+                Solve.PushInt(ThePlan.StepTarget[Step]);
+                Solve.PushInt(Op);
+                for (int i = 0; i < 2; ++i)
+                  {
+                    if (i < ArgOrdinals.length)
+                      {
+                        Solve.Op(0x2b); /* aload_1 */
+                        Solve.PushInt(ArgOrdinals[i]);
+                        Solve.Op(0x31); /* daload */
+                      }
+                    else
+                      {
+                        Solve.Op(0x0e); /* dconst_0 */
+                      } /*if*/
+                  } /*for*/
+                Solve.Op(0xb8, Evaluate); /* invokestatic */
+                Solve.Op(0x52); /* dastore */
+              }
+            else
+              {
+                final int Args = ArgsLocal[ArgOrdinals.length];
+                for (int i = 0; i < ArgOrdinals.length; ++i)
+                  {
+                  /* Args[i] = Values[ArgOrdinals[i]] */
+                    Solve.Local(0x19, Args); /* aload */
+                    Solve.PushInt(i);
+                    Solve.Op(0x2b); /* aload_1 */
+                    Solve.PushInt(ArgOrdinals[i]);
+                    Solve.Op(0x31); /* daload */
+                    Solve.Op(0x52); /* dastore */
+                  } /*for*/
+              /* Values[Target] = Calc[Step].Calculate(Args) */
+                Solve.Op(0x2b); /* aload_1 */
+                Solve.PushInt(ThePlan.StepTarget[Step]);
+                Solve.Local(0x19, CalcLocal); /* aload */
+                Solve.PushInt(Step);
+                Solve.Op(0x32); /* aaload */
+                Solve.Local(0x19, Args); /* aload */
+                Solve.Op(0xb9, Calculate); /* invokeinterface */
+                Solve.Bytes.write(2); /* argument slots, including receiver */
+                Solve.Bytes.write(0);
+                Solve.Op(0x52); /* dastore */
+              } /*if*/
+          } /*for*/
+        Solve.Op(0xb1); /* return */
+        final ByteArrayOutputStream Result = new ByteArrayOutputStream();
+        final DataOutputStream Out = new DataOutputStream(Result);
+        Out.writeInt(0xcafebabe);
+        Out.writeShort(0); /* minor version */
+        Out.writeShort(49); /* major version: Java 5, no stack maps */
+      /* constant pool must be complete before it is written, so collect
+        the rest of the class first */
+        final ByteArrayOutputStream BodyBytes = new ByteArrayOutputStream();
+        final DataOutputStream Body = new DataOutputStream(BodyBytes);
+        Body.writeShort(0x0031); /* public final super */
+        Body.writeShort(ThisClass);
+        Body.writeShort(SuperClass);
+        Body.writeShort(1); /* interfaces count */
+        Body.writeShort(Interface);
+        Body.writeShort(1); /* fields count */
+        Body.writeShort(0x0012); /* private final */
+        Body.writeShort(Class.Utf8("Calc"));
+        Body.writeShort(Class.Utf8(CalcFunctionsType));
+        Body.writeShort(0); /* attributes count */
+        Body.writeShort(2); /* methods count */
+        Body.writeShort(0x0001); /* public */
+        Body.writeShort(Class.Utf8("<init>"));
+        Body.writeShort(Class.Utf8("(" + CalcFunctionsType + ")V"));
+        Body.writeShort(1); /* attributes count */
+        Init.WriteTo(Class, Body, 2, 2);
+        Body.writeShort(0x0001); /* public */
+        Body.writeShort(Class.Utf8("Solve"));
+        Body.writeShort(Class.Utf8("([D)V"));
+        Body.writeShort(1); /* attributes count */
+        Solve.WriteTo(Class, Body, 8, NrLocals);
+        Body.writeShort(0); /* class attributes count */
+        Out.writeShort(Class.NrConstants + 1);
+        Class.ConstantBytes.writeTo(Out);
+        BodyBytes.writeTo(Out);
+        return
+            Result.toByteArray();
+      } /*GenerateKernel*/
+
+    private synchronized Kernel MakeKernel
+      (
+        int Known
+      )
+      /* generates, loads and caches the kernel for the specified known
+        mask, if this has not already been done. Synchronized so each
+        class is only defined once. */
+      {
+        Kernel Result = Kernels[Known];
+        if (Result == null && !Unsupported)
+          {
+            final RuleGraph.Plan ThePlan = Graph.GetPlan(Known);
+            final String ClassName = ThisPackage + "PlanKernel$" + Integer.toHexString(Known);
+            try
+              {
+                Result =
+                    (Kernel)Loader.Define
+                      (
+                        ClassName.replace('/', '.'),
+                        GenerateKernel(ClassName, ThePlan)
+                      )
+                    .getConstructor(Rules.CalcFunction[].class)
+                    .newInstance((Object)ThePlan.StepCalc);
+                Kernels[Known] = Result;
+              }
+            catch (IOException Impossible)
+              {
+                throw new RuntimeException(Impossible);
+              }
+            catch (UnsupportedOperationException NoClassFiles) /* as on Dalvik */
+              {
+                Unsupported = true;
+              }
+            catch (LinkageError CannotLoad)
+              {
+                Unsupported = true;
+              }
+            catch (NoSuchMethodException Failed)
+              {
+                throw new RuntimeException("kernel instantiation failed", Failed);
+              }
+            catch (InstantiationException Failed)
+              {
+                throw new RuntimeException("kernel instantiation failed", Failed);
+              }
+            catch (IllegalAccessException Failed)
+              {
+                throw new RuntimeException("kernel instantiation failed", Failed);
+              }
+            catch (java.lang.reflect.InvocationTargetException Failed)
+              {
+                throw new RuntimeException("kernel instantiation failed", Failed.getCause());
+              } /*try*/
+          } /*if*/
+        return
+            Result;
+      } /*MakeKernel*/
+
+    public Kernel GetKernel
+      (
+        int Known
+      )
+      /* returns the (cached) generated kernel for solving from the fields
+        whose ordinals are set in Known, or null if generated classes
+        cannot be loaded on this platform. */
+      {
+        Kernel Result = Kernels[Known];
+        if (Result == null && !Unsupported)
+          {
+            Result = MakeKernel(Known);
+          } /*if*/
+        return
+            Result;
+      } /*GetKernel*/
+
+    public Rules.ComputeStatus Solve
+      (
+        ScreenParams Params
+      )
+      /* same as Graph.Solve(Params), only using the generated kernel if
+        there is one. */
+      {
+        final Rules.ComputeStatus Result;
+        final Kernel TheKernel = GetKernel(Params.Known);
+        if (TheKernel != null)
+          {
+            final RuleGraph.Plan ThePlan = Graph.GetPlan(Params.Known);
+            TheKernel.Solve(Params.Values);
+            Params.Known |= ThePlan.ComputedMask;
+            Params.Computed = ThePlan.ComputedMask;
+            Result = ThePlan.Status();
+          }
+        else
+          {
+            Result = Graph.Solve(Params);
+          } /*if*/
+        return
+            Result;
+      } /*Solve*/
+
+  } /*PlanCompiler*/;
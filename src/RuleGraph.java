@@ -0,0 +1,333 @@
+package nz.gen.geek_central.screencalc;
+/*
+    Compiled form of the Screencalc calculation rules: the entries in
+    Rules.ParamDefs are turned once into a dependency graph, where each
+    rule keeps count of how many of its arguments are still unknown.
+    Which rules fire, and in which order, depends only on which fields
+    are known to begin with, so this is worked out once for each such
+    combination into a straight-line Plan, which is cached. Solving then
+    just looks up the plan and runs it, instead of rescanning all the
+    fields and all the rules until nothing more changes.
+
+    A RuleGraph never changes once constructed, apart from filling in
+    its plan cache, which is safe to do from multiple threads at once.
+    So one RuleGraph can be shared by any number of solving threads,
+    independently of the unit settings in the Rules it came from.
+
+    There should be nothing Android-specific in this source file.
+
+    Copyright 2014 Lawrence D'Oliveiro <ldo@geek-central.gen.nz>.
+
+    This program is free software: you can redistribute it and/or
+    modify it under the terms of the GNU General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+    General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.ArrayList;
+import static nz.gen.geek_central.screencalc.Rules.FieldName;
+
+public class RuleGraph
+  {
+    static final FieldName[] Fields = FieldName.values();
+    public static final int NrFields = Fields.length;
+    public static final int AllFields = (1 << NrFields) - 1; /* mask with bits for all fields */
+
+    final int NrRules;
+    final int[] RuleTarget; /* ordinal of field computed by each rule */
+    final int[][] RuleArgs; /* ordinals of fields needed by each rule */
+    final Rules.CalcFunction[] RuleCalc;
+    final int[] RuleOp; /* opcode for Rules.Evaluate for each rule, or -1 to call RuleCalc */
+    final int[][] RuleSlopes; /* direction of dependence on each argument of each rule */
+    final int[][] RulesFor;
+      /* indexed by field ordinal, rules which compute that field, in order of preference */
+    final int[][] Dependents;
+      /* indexed by field ordinal, rules which take that field as an argument */
+
+    public RuleGraph
+      (
+        java.util.Map<FieldName, Rules.ParamDef> ParamDefs
+      )
+      {
+        final ArrayList<Integer> Targets = new ArrayList<Integer>();
+        final ArrayList<int[]> Args = new ArrayList<int[]>();
+        final ArrayList<Rules.CalcFunction> Calcs = new ArrayList<Rules.CalcFunction>();
+        final ArrayList<int[]> Slopes = new ArrayList<int[]>();
+        final ArrayList<Integer> Ops = new ArrayList<Integer>();
+        RulesFor = new int[NrFields][];
+        for (FieldName Name : Fields)
+          {
+            final Rules.ParamDef ThisParam = ParamDefs.get(Name);
+            final int FirstRule = Targets.size();
+            if (ThisParam != null)
+              {
+                for (Rules.ParamDef.Entry ThisRule : ThisParam.Calculate)
+                  {
+                    final FieldName[] ArgNames = ThisRule.ArgNames;
+                    final int[] ArgOrdinals = new int[ArgNames.length];
+                    for (int i = 0; i < ArgNames.length; ++i)
+                      {
+                        ArgOrdinals[i] = ArgNames[i].ordinal();
+                      } /*for*/
+                    Targets.add(Name.ordinal());
+                    Args.add(ArgOrdinals);
+                    Calcs.add(ThisRule.Calc);
+                    Slopes.add(ThisRule.Slopes);
+                    Ops.add(ThisRule.Op);
+                  } /*for*/
+              } /*if*/
+            RulesFor[Name.ordinal()] = new int[Targets.size() - FirstRule];
+            for (int i = FirstRule; i < Targets.size(); ++i)
+              {
+                RulesFor[Name.ordinal()][i - FirstRule] = i;
+              } /*for*/
+          } /*for*/
+        NrRules = Targets.size();
+        RuleTarget = new int[NrRules];
+        RuleArgs = new int[NrRules][];
+        RuleCalc = new Rules.CalcFunction[NrRules];
+        RuleSlopes = new int[NrRules][];
+        RuleOp = new int[NrRules];
+        final int[] NrDependents = new int[NrFields];
+        for (int i = 0; i < NrRules; ++i)
+          {
+            RuleTarget[i] = Targets.get(i);
+            RuleArgs[i] = Args.get(i);
+            RuleCalc[i] = Calcs.get(i);
+            RuleSlopes[i] = Slopes.get(i);
+            RuleOp[i] = Ops.get(i);
+            for (int ArgOrdinal : RuleArgs[i])
+              {
+                ++NrDependents[ArgOrdinal];
+              } /*for*/
+          } /*for*/
+        Dependents = new int[NrFields][];
+        for (int i = 0; i < NrFields; ++i)
+          {
+            Dependents[i] = new int[NrDependents[i]];
+            NrDependents[i] = 0;
+          } /*for*/
+        for (int i = 0; i < NrRules; ++i)
+          {
+            for (int ArgOrdinal : RuleArgs[i])
+              {
+                Dependents[ArgOrdinal][NrDependents[ArgOrdinal]++] = i;
+              } /*for*/
+          } /*for*/
+      } /*RuleGraph*/
+
+    public static class Plan
+      {
+      /* straight-line sequence of rule firings for solving a particular
+        combination of known fields. */
+        public final int KnownMask; /* bits by field ordinal of fields initially known */
+        public final int ComputedMask; /* bits by field ordinal of fields the plan computes */
+        public final int[] StepTarget; /* ordinal of field computed at each step */
+        public final int[][] StepArgs; /* ordinals of argument fields for each step */
+        public final Rules.CalcFunction[] StepCalc; /* function to call at each step */
+        public final int[] StepOp; /* opcode for Rules.Evaluate at each step, or -1 to use StepCalc */
+        public final int[] StepRule; /* index of rule fired at each step */
+        public final int[] StepArgMask; /* bits by field ordinal of StepArgs */
+
+        Plan
+          (
+            int KnownMask,
+            int ComputedMask,
+            int[] StepTarget,
+            int[][] StepArgs,
+            Rules.CalcFunction[] StepCalc,
+            int[] StepOp,
+            int[] StepRule
+          )
+          {
+            this.KnownMask = KnownMask;
+            this.ComputedMask = ComputedMask;
+            this.StepTarget = StepTarget;
+            this.StepArgs = StepArgs;
+            this.StepCalc = StepCalc;
+            this.StepOp = StepOp;
+            this.StepRule = StepRule;
+            StepArgMask = new int[StepArgs.length];
+            for (int i = 0; i < StepArgs.length; ++i)
+              {
+                for (int ArgOrdinal : StepArgs[i])
+                  {
+                    StepArgMask[i] |= 1 << ArgOrdinal;
+                  } /*for*/
+              } /*for*/
+          } /*Plan*/
+
+        public Rules.ComputeStatus Status()
+          {
+            return
+                (KnownMask | ComputedMask) == AllFields ?
+                    Rules.ComputeStatus.COMPUTE_DONE
+                :
+                    Rules.ComputeStatus.COMPUTE_INCOMPLETE;
+          } /*Status*/
+
+      } /*Plan*/;
+
+    private final Plan[] Plans = new Plan[1 << NrFields];
+      /* indexed by known mask, filled in as needed. Plans are immutable,
+        so it doesn't matter if two threads race to fill in the same one. */
+
+    Plan MakePlan
+      (
+        int Known
+      )
+      /* works out which rules to fire, in which order, to compute as
+        many as possible of the fields not in Known. Fields are visited
+        in ascending order within each pass, with a field that only becomes
+        computable from a later field in the same pass being deferred to the
+        next pass, and each is computed by the most preferred of its rules
+        whose arguments are all known at that point. None of this depends
+        on anything but Known and the order of the rule definitions, so the
+        results are reproducible bit for bit from one run to the next. */
+      {
+        final int InitKnown = Known;
+        final int[] Missing = new int[NrRules];
+        final int[] Steps = new int[NrFields];
+        int NrSteps = 0;
+        int ThisPass = 0; /* mask of fields to be computed in this pass */
+        for (int i = 0; i < NrRules; ++i)
+          {
+            for (int ArgOrdinal : RuleArgs[i])
+              {
+                if ((Known & 1 << ArgOrdinal) == 0)
+                  {
+                    ++Missing[i];
+                  } /*if*/
+              } /*for*/
+            if (Missing[i] == 0 && (Known & 1 << RuleTarget[i]) == 0)
+              {
+                ThisPass |= 1 << RuleTarget[i];
+              } /*if*/
+          } /*for*/
+        while (ThisPass != 0)
+          {
+            int NextPass = 0;
+            for (int Field = 0; Field < NrFields; ++Field)
+              {
+                if ((ThisPass & 1 << Field) != 0)
+                  {
+                    for (int RuleIndex : RulesFor[Field])
+                      {
+                        if (Missing[RuleIndex] == 0)
+                          {
+                            Steps[NrSteps++] = RuleIndex;
+                            break;
+                          } /*if*/
+                      } /*for*/
+                    Known |= 1 << Field;
+                    for (int RuleIndex : Dependents[Field])
+                      {
+                        final int Target = RuleTarget[RuleIndex];
+                        if (--Missing[RuleIndex] == 0 && (Known & 1 << Target) == 0)
+                          {
+                            if (Target > Field)
+                              {
+                                ThisPass |= 1 << Target;
+                              }
+                            else
+                              {
+                                NextPass |= 1 << Target;
+                              } /*if*/
+                          } /*if*/
+                      } /*for*/
+                  } /*if*/
+              } /*for*/
+            ThisPass = NextPass;
+          } /*while*/
+        final int[] StepTarget = new int[NrSteps];
+        final int[][] StepArgs = new int[NrSteps][];
+        final Rules.CalcFunction[] StepCalc = new Rules.CalcFunction[NrSteps];
+        final int[] StepOp = new int[NrSteps];
+        for (int i = 0; i < NrSteps; ++i)
+          {
+            StepTarget[i] = RuleTarget[Steps[i]];
+            StepArgs[i] = RuleArgs[Steps[i]];
+            StepCalc[i] = RuleCalc[Steps[i]];
+            StepOp[i] = RuleOp[Steps[i]];
+          } /*for*/
+        return
+            new Plan
+              (
+                InitKnown,
+                Known & ~InitKnown,
+                StepTarget,
+                StepArgs,
+                StepCalc,
+                StepOp,
+                java.util.Arrays.copyOf(Steps, NrSteps)
+              );
+      } /*MakePlan*/
+
+    public Plan GetPlan
+      (
+        int Known
+      )
+      /* returns the (cached) plan for solving from the fields whose
+        ordinals are set in Known. */
+      {
+        Plan Result = Plans[Known];
+        if (Result == null)
+          {
+            Result = MakePlan(Known);
+            Plans[Known] = Result;
+          } /*if*/
+        return
+            Result;
+      } /*GetPlan*/
+
+    public Rules.ComputeStatus Solve
+      (
+        ScreenParams Params
+      )
+      /* tries to fill in all missing parameter values in Params based
+        on the known ones. Params.Computed is set to the fields that were
+        actually computed. Does no allocation once the plan for this
+        combination of known fields has been cached. */
+      {
+        final Plan ThePlan = GetPlan(Params.Known);
+        final double[] Values = Params.Values;
+        for (int Step = 0; Step < ThePlan.StepTarget.length; ++Step)
+          {
+            final int[] ArgOrdinals = ThePlan.StepArgs[Step];
+            final int Op = ThePlan.StepOp[Step];
+            if (Op >= 0)
+              {
+                Values[ThePlan.StepTarget[Step]] =
+                    Rules.Evaluate
+                      (
+                        Op,
+                        Values[ArgOrdinals[0]],
+                        ArgOrdinals.length > 1 ? Values[ArgOrdinals[1]] : 0.0
+                      );
+              }
+            else
+              {
+                final double[] Args = Params.ArgBuf(ArgOrdinals.length);
+                for (int i = 0; i < ArgOrdinals.length; ++i)
+                  {
+                    Args[i] = Values[ArgOrdinals[i]];
+                  } /*for*/
+                Values[ThePlan.StepTarget[Step]] = ThePlan.StepCalc[Step].Calculate(Args);
+              } /*if*/
+          } /*for*/
+        Params.Known |= ThePlan.ComputedMask;
+        Params.Computed = ThePlan.ComputedMask;
+        return
+            ThePlan.Status();
+      } /*Solve*/
+
+  } /*RuleGraph*/;
@@ -25,14 +25,47 @@ package nz.gen.geek_central.screencalc;
     <http://www.gnu.org/licenses/>.
 */
 
-import java.util.HashMap;
 
 public class Rules
   {
   /* worth comparing the relative complexity of setting up the calculation rules
     here in Java versus the Python version at <https://github.com/ldo/screencalc> */
 
-    public Units CurUnits = Units.UNITS_CM; /* no relevant locale setting? */
+  /* A Rules object never changes once constructed: the current units are
+    passed to each parse or format call instead of being kept here. So one
+    instance can be shared by any number of threads without locking. */
+
+    public final NumberUseful.FractionTable Ratios;
+      /* common aspect ratios, for formatting and parsing */
+    public final boolean StrictRatios;
+      /* how to format aspect ratios not in Ratios: true (the default) for
+        NumberUseful.Fraction.FromReal, which gives the same output as
+        always; false for the much faster FromRealSimplest, which may give
+        a simpler fraction further from the value, e.g. 12:7 instead of
+        17:10 for 1.7 */
+
+    public Rules
+      (
+        NumberUseful.FractionTable Ratios,
+        boolean StrictRatios
+      )
+      {
+        this.Ratios = Ratios;
+        this.StrictRatios = StrictRatios;
+      } /*Rules*/
+
+    public Rules
+      (
+        NumberUseful.FractionTable Ratios
+      )
+      {
+        this(Ratios, true);
+      } /*Rules*/
+
+    public Rules()
+      {
+        this(NumberUseful.FractionTable.Common);
+      } /*Rules*/
 
     public static enum FieldName
       {
@@ -89,7 +122,8 @@ public class Rules
 
         public double Parse
           (
-            String s
+            String s,
+            Units CurUnits /* for interpreting values without explicit units */
           );
 
       } /*Parser*/;
@@ -99,7 +133,8 @@ public class Rules
 
         public double Parse
           (
-            String s
+            String s,
+            Units CurUnits
           )
           {
             return
@@ -125,11 +160,27 @@ public class Rules
 
       } /*UnitEntry*/;
 
-    class ParseMeasure implements Parser
+    static class ParseMeasure implements Parser
       {
+      /* parses a decimal number followed by optional units. This is done
+        with a hand-written scanner rather than a regular expression, and
+        allocates nothing unless the string is invalid. */
+
+        private final String[] UnitNames;
+        private final double[] UnitMultipliers;
+        private final double DefaultMultiplierSI, DefaultMultiplierImp; /* NaN if no default */
 
-        private final java.util.Map<String, Double> AcceptableUnits;
-        private final String DefaultUnitsSI, DefaultUnitsImp; /* optional */
+        private static final double[] PowersOf10 = new double[23];
+          /* all exactly representable in a double */
+        static
+          {
+            double Power = 1.0;
+            for (int i = 0; i < PowersOf10.length; ++i)
+              {
+                PowersOf10[i] = Power;
+                Power *= 10.0;
+              } /*for*/
+          }
 
         public ParseMeasure
           (
@@ -138,24 +189,31 @@ public class Rules
             String DefaultUnitsImp
           )
           {
-            this.AcceptableUnits = new java.util.HashMap<String, Double>();
+            UnitNames = new String[AcceptableUnits.length];
+            UnitMultipliers = new double[AcceptableUnits.length];
             boolean ValidDefaultUnitsSI = DefaultUnitsSI == null;
             boolean ValidDefaultUnitsImp = DefaultUnitsImp == null;
             if (ValidDefaultUnitsSI != ValidDefaultUnitsImp)
               {
                 throw new RuntimeException("either specify both or neither DefaultUnits");
               } /*if*/
-            for (UnitEntry ThisUnit : AcceptableUnits)
+            double DefaultMultiplierSI = Double.NaN;
+            double DefaultMultiplierImp = Double.NaN;
+            for (int i = 0; i < AcceptableUnits.length; ++i)
               {
+                final UnitEntry ThisUnit = AcceptableUnits[i];
                 if (!ValidDefaultUnitsSI && ThisUnit.Name.equals(DefaultUnitsSI))
                   {
                     ValidDefaultUnitsSI = true;
+                    DefaultMultiplierSI = ThisUnit.Multiplier;
                   } /*if*/
                 if (!ValidDefaultUnitsImp && ThisUnit.Name.equals(DefaultUnitsImp))
                   {
                     ValidDefaultUnitsImp = true;
+                    DefaultMultiplierImp = ThisUnit.Multiplier;
                   } /*if*/
-                this.AcceptableUnits.put(ThisUnit.Name, ThisUnit.Multiplier);
+                UnitNames[i] = ThisUnit.Name;
+                UnitMultipliers[i] = ThisUnit.Multiplier;
               } /*for*/
             if (!ValidDefaultUnitsSI || !ValidDefaultUnitsImp)
               {
@@ -169,52 +227,146 @@ public class Rules
                       )
                   );
               } /*if*/
-            this.DefaultUnitsSI = DefaultUnitsSI;
-            this.DefaultUnitsImp = DefaultUnitsImp;
+            this.DefaultMultiplierSI = DefaultMultiplierSI;
+            this.DefaultMultiplierImp = DefaultMultiplierImp;
           } /*ParseMeasure*/
 
         public double Parse
           (
-            String s
+            CharSequence s,
+            int From,
+            int To,
+            Units CurUnits
           )
+          /* parses the measure in positions [From, To) of s. Error messages
+            include the offending position within s. */
           {
-            s = s.toLowerCase();
-            final java.util.regex.Matcher MeasureMatch =
-                java.util.regex.Pattern.compile("^(\\d+(?:\\.\\d*)?|\\.\\d+)", 0).matcher(s);
-            if (!MeasureMatch.find())
+          /* number part is digits with optional decimal point, and
+            at least one digit on one side of the point */
+            int Pos = From;
+            long Mantissa = 0;
+            boolean Exact = true; /* whether Mantissa holds all the digits */
+            int IntDigits = 0, FracDigits = 0;
+            boolean HasPoint = false;
+            for (;;)
+              {
+                if (Pos == To)
+                    break;
+                final char c = s.charAt(Pos);
+                if (c >= '0' && c <= '9')
+                  {
+                    if (Mantissa < 1L << 53)
+                      {
+                        Mantissa = Mantissa * 10 + (c - '0');
+                      }
+                    else
+                      {
+                        Exact = false;
+                      } /*if*/
+                    if (HasPoint)
+                      {
+                        ++FracDigits;
+                      }
+                    else
+                      {
+                        ++IntDigits;
+                      } /*if*/
+                  }
+                else if (c == '.' && !HasPoint)
+                  {
+                    HasPoint = true;
+                  }
+                else
+                    break;
+                ++Pos;
+              } /*for*/
+            if (IntDigits == 0 && FracDigits == 0)
+              {
+                throw new NumberFormatException
+                  (
+                    String.format("invalid measure at position %d", From)
+                  );
+              } /*if*/
+            final int NumberEnd = Pos;
+            final double Value;
+            if (Exact && Mantissa < 1L << 53 && FracDigits < PowersOf10.length)
+              {
+              /* both operands are exact, so the division is correctly rounded,
+                the same as Double.parseDouble would give */
+                Value = Mantissa / PowersOf10[FracDigits];
+              }
+            else
               {
-                throw new NumberFormatException("invalid measure");
+                Value = Double.parseDouble(s.subSequence(From, NumberEnd).toString());
               } /*if*/
-            final String Units = s.substring(MeasureMatch.end(1));
-            final String DefaultUnits =
-                Rules.this.CurUnits == Rules.Units.UNITS_CM ? DefaultUnitsSI : DefaultUnitsImp;
-            final Double Multiplier;
-            if (Units.length() != 0)
+            final double Multiplier;
+            if (NumberEnd != To)
               {
-                Multiplier = AcceptableUnits.get(Units);
-                if (Multiplier == null)
+                int UnitIndex = -1;
+                final int UnitsLength = To - NumberEnd;
+                for (int i = 0; i < UnitNames.length; ++i)
+                  {
+                    final String ThisName = UnitNames[i];
+                    if (ThisName.length() == UnitsLength)
+                      {
+                        boolean Match = true;
+                        for (int j = 0; j < UnitsLength; ++j)
+                          {
+                            if (Character.toLowerCase(s.charAt(NumberEnd + j)) != ThisName.charAt(j))
+                              {
+                                Match = false;
+                                break;
+                              } /*if*/
+                          } /*for*/
+                        if (Match)
+                          {
+                            UnitIndex = i;
+                            break;
+                          } /*if*/
+                      } /*if*/
+                  } /*for*/
+                if (UnitIndex < 0)
                   {
                     throw new NumberFormatException
                       (
-                        String.format("unrecognized units “%s”", Units)
+                        String.format
+                          (
+                            "unrecognized units “%s” at position %d",
+                            s.subSequence(NumberEnd, To),
+                            NumberEnd
+                          )
                       );
                   } /*if*/
-              }
-            else if (DefaultUnits != null)
-              {
-                Multiplier = AcceptableUnits.get(DefaultUnits);
+                Multiplier = UnitMultipliers[UnitIndex];
               }
             else
               {
-                throw new NumberFormatException("missing units and no default");
+                Multiplier = CurUnits == Rules.Units.UNITS_CM ? DefaultMultiplierSI : DefaultMultiplierImp;
+                if (Double.isNaN(Multiplier))
+                  {
+                    throw new NumberFormatException
+                      (
+                        String.format("missing units and no default at position %d", NumberEnd)
+                      );
+                  } /*if*/
               } /*if*/
             return
-                Double.parseDouble(MeasureMatch.group(1)) * Multiplier;
+                Value * Multiplier;
+          } /*Parse*/
+
+        public double Parse
+          (
+            String s,
+            Units CurUnits
+          )
+          {
+            return
+                Parse(s, 0, s.length(), CurUnits);
           } /*Parse*/
 
       } /*ParseMeasure*/;
 
-    class ParseDensity extends ParseMeasure
+    static class ParseDensity extends ParseMeasure
       {
         public ParseDensity()
           {
@@ -232,7 +384,7 @@ public class Rules
           } /*ParseDensity*/
       } /*ParseDensity*/;
 
-    class ParseDistance extends ParseMeasure
+    static class ParseDistance extends ParseMeasure
       {
         public ParseDistance()
           {
@@ -251,17 +403,24 @@ public class Rules
           } /*ParseDistance*/
       } /*ParseDistance*/;
 
-    static class ParseRatio implements Parser
+    class ParseRatio implements Parser
       {
+      /* common ratios are looked up in Ratios rather than parsed each time */
 
         public double Parse
           (
-            String s
+            String s,
+            Units CurUnits
           )
           {
+            final NumberUseful.Fraction Common = Ratios.Get(s);
             final int SepPos = s.indexOf(":");
             final double Result;
-            if (SepPos >= 0)
+            if (Common != null)
+              {
+                Result = Common.ToReal();
+              }
+            else if (SepPos >= 0)
               {
                 final double Numer = Double.parseDouble(s.substring(0, SepPos));
                 final double Denom = Double.parseDouble(s.substring(SepPos + 1, s.length()));
@@ -291,6 +450,224 @@ public class Rules
 
       } /*CalcFunction*/;
 
+  /* opcodes for the formulas in the rule table, where Arg0 and Arg1 are
+    the rule's arguments in the order of its ArgNames */
+    public static final int OP_MUL = 0; /* Arg0 * Arg1 */
+    public static final int OP_DIV = 1; /* Arg0 / Arg1 */
+    public static final int OP_RDIV = 2; /* Arg1 / Arg0 */
+    public static final int OP_SQRT_MUL = 3; /* sqrt(Arg1 * Arg0) */
+    public static final int OP_SQRT_RDIV = 4; /* sqrt(Arg1 / Arg0) */
+    public static final int OP_HYPOT = 5; /* hypot(Arg0, Arg1) */
+    public static final int OP_LEG = 6; /* sqrt(Arg0² - Arg1²) */
+    public static final int OP_ACUITY = 7; /* acuity_factor / Arg0 */
+    public static final int OP_HEIGHT_FROM_DIAG = 8; /* Arg0 = aspect, Arg1 = diagonal */
+    public static final int OP_WIDTH_FROM_DIAG = 9; /* Arg0 = aspect, Arg1 = diagonal */
+    public static final int OP_DIAG_FROM_HEIGHT = 10; /* Arg0 = aspect, Arg1 = height */
+    public static final int OP_DIAG_FROM_WIDTH = 11; /* Arg0 = aspect, Arg1 = width */
+
+    static final int[][] OpSlopes =
+        {
+          /* indexed by opcode: for each argument, +1 if the result increases
+            with it, -1 if it decreases, over all positive values of the
+            arguments. Every formula must be monotonic in each argument like
+            this. The length of each entry is the number of arguments. */
+            /*OP_MUL =*/ {+1, +1},
+            /*OP_DIV =*/ {+1, -1},
+            /*OP_RDIV =*/ {-1, +1},
+            /*OP_SQRT_MUL =*/ {+1, +1},
+            /*OP_SQRT_RDIV =*/ {-1, +1},
+            /*OP_HYPOT =*/ {+1, +1},
+            /*OP_LEG =*/ {+1, -1},
+            /*OP_ACUITY =*/ {-1},
+            /*OP_HEIGHT_FROM_DIAG =*/ {+1, +1},
+            /*OP_WIDTH_FROM_DIAG =*/ {-1, +1},
+            /*OP_DIAG_FROM_HEIGHT =*/ {-1, +1},
+            /*OP_DIAG_FROM_WIDTH =*/ {+1, +1},
+        };
+
+    public static double Evaluate
+      (
+        int Op,
+        double Arg0,
+        double Arg1 /* ignored for single-argument ops */
+      )
+      /* the one place where all the formulas are defined. */
+      {
+        final double Result;
+        switch (Op)
+          {
+        case OP_MUL:
+            Result = Arg0 * Arg1;
+        break;
+        case OP_DIV:
+            Result = Arg0 / Arg1;
+        break;
+        case OP_RDIV:
+            Result = Arg1 / Arg0;
+        break;
+        case OP_SQRT_MUL:
+            Result = Math.sqrt(Arg1 * Arg0);
+        break;
+        case OP_SQRT_RDIV:
+            Result = Math.sqrt(Arg1 / Arg0);
+        break;
+        case OP_HYPOT:
+            Result = Math.hypot(Arg0, Arg1);
+        break;
+        case OP_LEG:
+            Result = Math.sqrt(Arg0 * Arg0 - Arg1 * Arg1);
+        break;
+        case OP_ACUITY:
+            Result = acuity_factor / Arg0;
+        break;
+        case OP_HEIGHT_FROM_DIAG:
+            Result = Arg1 / AspectDiag(Arg0) * Arg0;
+        break;
+        case OP_WIDTH_FROM_DIAG:
+            Result = Arg1 / AspectDiag(Arg0);
+        break;
+        case OP_DIAG_FROM_HEIGHT:
+            Result = Arg1 / Arg0 * AspectDiag(Arg0);
+        break;
+        case OP_DIAG_FROM_WIDTH:
+            Result = Arg1 * AspectDiag(Arg0);
+        break;
+        default:
+            throw new IllegalArgumentException("unknown rule opcode " + Op);
+          } /*switch*/
+        return
+            Result;
+      } /*Evaluate*/
+
+    public static void EvaluateColumns
+      (
+        int Op,
+        double[] Arg0,
+        double[] Arg1, /* ignored for single-argument ops */
+        double[] Result,
+        int Count
+      )
+      /* does Result[i] = Evaluate(Op, Arg0[i], Arg1[i]) for i in [0, Count),
+        with the dispatch on Op done once outside the loop, giving each
+        loop body a simple shape the JIT can unroll and vectorise. */
+      {
+        switch (Op)
+          {
+        case OP_MUL:
+            for (int i = 0; i < Count; ++i)
+              {
+                Result[i] = Arg0[i] * Arg1[i];
+              } /*for*/
+        break;
+        case OP_DIV:
+            for (int i = 0; i < Count; ++i)
+              {
+                Result[i] = Arg0[i] / Arg1[i];
+              } /*for*/
+        break;
+        case OP_RDIV:
+            for (int i = 0; i < Count; ++i)
+              {
+                Result[i] = Arg1[i] / Arg0[i];
+              } /*for*/
+        break;
+        case OP_ACUITY:
+            for (int i = 0; i < Count; ++i)
+              {
+                Result[i] = acuity_factor / Arg0[i];
+              } /*for*/
+        break;
+        default:
+          /* formulas needing library calls gain nothing from being unrolled */
+            if (OpSlopes[Op].length > 1)
+              {
+                for (int i = 0; i < Count; ++i)
+                  {
+                    Result[i] = Evaluate(Op, Arg0[i], Arg1[i]);
+                  } /*for*/
+              }
+            else
+              {
+                for (int i = 0; i < Count; ++i)
+                  {
+                    Result[i] = Evaluate(Op, Arg0[i], 0.0);
+                  } /*for*/
+              } /*if*/
+        break;
+          } /*switch*/
+      } /*EvaluateColumns*/
+
+    public static class Formula implements CalcFunction
+      {
+      /* one entry in the rule table: computes Target from the fields in
+        ArgNames, using the formula selected by Op. */
+        public final FieldName Target;
+        public final int Priority; /* as for ParamDef.Entry */
+        public final int Op;
+        public final FieldName[] ArgNames;
+
+        public Formula
+          (
+            FieldName Target,
+            int Priority,
+            int Op,
+            FieldName... ArgNames
+          )
+          {
+            if (Op < 0 || Op >= OpSlopes.length || ArgNames.length != OpSlopes[Op].length)
+              {
+                throw new IllegalArgumentException("bad opcode or number of arguments for " + Target);
+              } /*if*/
+            this.Target = Target;
+            this.Priority = Priority;
+            this.Op = Op;
+            this.ArgNames = ArgNames;
+          } /*Formula*/
+
+        public double Calculate
+          (
+            double[] Args
+          )
+          {
+            return
+                Evaluate(Op, Args[0], Args.length > 1 ? Args[1] : 0.0);
+          } /*Calculate*/
+
+      } /*Formula*/;
+
+    static final Formula[] RuleTable =
+        {
+          /* all the calculation rules: Target, Priority, Op, ArgNames. Rules
+            for the same Target with equal Priority are preferred in the
+            order given here. */
+            new Formula(FieldName.HeightMeasure, 2, OP_HEIGHT_FROM_DIAG, FieldName.AspectRatio, FieldName.DiagMeasure),
+            new Formula(FieldName.HeightMeasure, 0, OP_MUL, FieldName.AspectRatio, FieldName.WidthMeasure),
+            new Formula(FieldName.HeightMeasure, 0, OP_RDIV, FieldName.PixelDensity, FieldName.HeightPixels),
+            new Formula(FieldName.HeightMeasure, 3, OP_LEG, FieldName.DiagMeasure, FieldName.WidthMeasure),
+            new Formula(FieldName.WidthMeasure, 2, OP_WIDTH_FROM_DIAG, FieldName.AspectRatio, FieldName.DiagMeasure),
+            new Formula(FieldName.WidthMeasure, 0, OP_RDIV, FieldName.AspectRatio, FieldName.HeightMeasure),
+            new Formula(FieldName.WidthMeasure, 0, OP_RDIV, FieldName.PixelDensity, FieldName.WidthPixels),
+            new Formula(FieldName.WidthMeasure, 3, OP_LEG, FieldName.DiagMeasure, FieldName.HeightMeasure),
+            new Formula(FieldName.DiagMeasure, 2, OP_DIAG_FROM_HEIGHT, FieldName.AspectRatio, FieldName.HeightMeasure),
+            new Formula(FieldName.DiagMeasure, 1, OP_DIAG_FROM_WIDTH, FieldName.AspectRatio, FieldName.WidthMeasure),
+            new Formula(FieldName.DiagMeasure, 1, OP_HYPOT, FieldName.HeightMeasure, FieldName.WidthMeasure),
+            new Formula(FieldName.HeightPixels, 1, OP_SQRT_MUL, FieldName.AspectRatio, FieldName.TotalPixels),
+            new Formula(FieldName.HeightPixels, 0, OP_MUL, FieldName.AspectRatio, FieldName.WidthPixels),
+            new Formula(FieldName.HeightPixels, 0, OP_MUL, FieldName.PixelDensity, FieldName.HeightMeasure),
+            new Formula(FieldName.HeightPixels, 0, OP_DIV, FieldName.TotalPixels, FieldName.WidthPixels),
+            new Formula(FieldName.WidthPixels, 0, OP_RDIV, FieldName.AspectRatio, FieldName.HeightPixels),
+            new Formula(FieldName.WidthPixels, 1, OP_SQRT_RDIV, FieldName.AspectRatio, FieldName.TotalPixels),
+            new Formula(FieldName.WidthPixels, 0, OP_MUL, FieldName.PixelDensity, FieldName.WidthMeasure),
+            new Formula(FieldName.WidthPixels, 0, OP_DIV, FieldName.TotalPixels, FieldName.HeightPixels),
+            new Formula(FieldName.TotalPixels, 0, OP_MUL, FieldName.HeightPixels, FieldName.WidthPixels),
+            new Formula(FieldName.PixelDensity, 0, OP_ACUITY, FieldName.ViewingDistance),
+            new Formula(FieldName.PixelDensity, 0, OP_RDIV, FieldName.HeightMeasure, FieldName.HeightPixels),
+            new Formula(FieldName.PixelDensity, 0, OP_RDIV, FieldName.WidthMeasure, FieldName.WidthPixels),
+            new Formula(FieldName.AspectRatio, 1, OP_DIV, FieldName.HeightMeasure, FieldName.WidthMeasure),
+            new Formula(FieldName.AspectRatio, 0, OP_DIV, FieldName.HeightPixels, FieldName.WidthPixels),
+            new Formula(FieldName.ViewingDistance, 0, OP_ACUITY, FieldName.PixelDensity),
+        };
+
     public static class ParamDef
       {
       /* information about each screen parameter: how to parse from string,
@@ -304,23 +681,50 @@ public class Rules
           };
         public final ParamTypes Type;
         public final Parser Parse;
-        public final HashMap<FieldName[], CalcFunction> Calculate =
-            new HashMap<FieldName[], CalcFunction>();
+        public final java.util.List<Entry> Calculate;
+          /* in order of preference: by Priority, then in order of definition */
 
         public static class Entry
           {
           /* one particular calculation rule */
+            public final int Priority;
+              /* lower is preferred: 0 for a single multiplication or division,
+                higher for formulas with more roundings, and highest for
+                subtracting squares, which can lose most of the precision */
             public final FieldName[] ArgNames; /* names of other parameters that must be known */
+            public final int[] Slopes;
+              /* for each argument, +1 if the result increases with it, -1 if it
+                decreases, over all positive values of the arguments. Every
+                rule must be monotonic in each argument like this. */
             public final CalcFunction Calc;
+            public final int Op; /* opcode from the rule table, or -1 if none */
 
             public Entry
               (
+                int Priority,
                 FieldName[] ArgNames,
+                int[] Slopes,
                 CalcFunction Calc
               )
+              /* for a rule with a formula not in the rule table. */
               {
+                this.Priority = Priority;
                 this.ArgNames = ArgNames;
+                this.Slopes = Slopes;
                 this.Calc = Calc;
+                this.Op = -1;
+              } /*Entry*/
+
+            public Entry
+              (
+                Formula Rule
+              )
+              {
+                this.Priority = Rule.Priority;
+                this.ArgNames = Rule.ArgNames;
+                this.Slopes = OpSlopes[Rule.Op];
+                this.Calc = Rule;
+                this.Op = Rule.Op;
               } /*Entry*/
 
           } /*Entry*/;
@@ -334,583 +738,104 @@ public class Rules
           {
             this.Type = Type;
             this.Parse = Parse;
-            for (Entry ThisEntry : Calculate)
-              {
-                this.Calculate.put(ThisEntry.ArgNames, ThisEntry.Calc);
-              } /*for*/
+            final Entry[] Sorted = Calculate.clone();
+            java.util.Arrays.sort /* stable, so ties stay in order of definition */
+              (
+                Sorted,
+                new java.util.Comparator<Entry>()
+                  {
+                    public int compare
+                      (
+                        Entry A,
+                        Entry B
+                      )
+                      {
+                        return
+                            A.Priority < B.Priority ? -1 : A.Priority > B.Priority ? 1 : 0;
+                      } /*compare*/
+                  } /*Comparator*/
+              );
+            this.Calculate = java.util.Collections.unmodifiableList(java.util.Arrays.asList(Sorted));
           } /*ParamDef*/
 
       } /*ParamDef*/;
 
-    public final HashMap<FieldName, ParamDef> ParamDefs = new HashMap<FieldName, ParamDef>();
+    static final Parser IntParser = new ParseInt();
+    static final Parser DistanceParser = new ParseDistance();
+    static final Parser DensityParser = new ParseDensity();
+      /* these hold no state, so can be shared by all Rules instances */
+
+    private final java.util.EnumMap<FieldName, ParamDef> Defs =
+        new java.util.EnumMap<FieldName, ParamDef>(FieldName.class);
       {
-        ParamDefs.put
-          (
-            FieldName.HeightMeasure,
-            new ParamDef
-              (
-                /*Type =*/ ParamDef.ParamTypes.TYPE_DISTANCE,
-                /*Parse =*/ new ParseDistance(),
-                /*Calculate =*/ new ParamDef.Entry[]
-                    {
-                        new ParamDef.Entry
-                          (
-                            /*ArgNames =*/ new FieldName[] {FieldName.AspectRatio, FieldName.DiagMeasure},
-                            /*Calc =*/
-                                new CalcFunction()
-                                  {
-                                    public double Calculate
-                                      (
-                                        double[] Args
-                                      )
-                                      {
-                                        return
-                                            Args[1] / AspectDiag(Args[0]) * Args[0];
-                                      } /*Calculate*/
-                                  } /*CalcFunction*/
-                          ),
-                        new ParamDef.Entry
-                          (
-                            /*ArgNames =*/ new FieldName[] {FieldName.AspectRatio, FieldName.WidthMeasure},
-                            /*Calc =*/
-                                new CalcFunction()
-                                  {
-                                    public double Calculate
-                                      (
-                                        double[] Args
-                                      )
-                                      {
-                                        return
-                                            Args[1] * Args[0];
-                                      } /*Calculate*/
-                                  } /*CalcFunction*/
-                          ),
-                        new ParamDef.Entry
-                          (
-                            /*ArgNames =*/ new FieldName[] {FieldName.PixelDensity, FieldName.HeightPixels},
-                            /*Calc =*/
-                                new CalcFunction()
-                                  {
-                                    public double Calculate
-                                      (
-                                        double[] Args
-                                      )
-                                      {
-                                        return
-                                            Args[1] / Args[0];
-                                      } /*Calculate*/
-                                  } /*CalcFunction*/
-                          ),
-                        new ParamDef.Entry
-                          (
-                            /*ArgNames =*/ new FieldName[] {FieldName.DiagMeasure, FieldName.WidthMeasure},
-                            /*Calc =*/
-                                new CalcFunction()
-                                  {
-                                    public double Calculate
-                                      (
-                                        double[] Args
-                                      )
-                                      {
-                                        return
-                                            Math.sqrt(Args[0] * Args[0] - Args[1] * Args[1]);
-                                      } /*Calculate*/
-                                  } /*CalcFunction*/
-                          ),
-                    }
-              )
-          );
-        ParamDefs.put
-          (
-            FieldName.WidthMeasure,
-            new ParamDef
-              (
-                /*Type =*/ ParamDef.ParamTypes.TYPE_DISTANCE,
-                /*Parse =*/ new ParseDistance(),
-                /*Calculate =*/ new ParamDef.Entry[]
-                    {
-                        new ParamDef.Entry
-                          (
-                            /*ArgNames =*/ new FieldName[] {FieldName.AspectRatio, FieldName.DiagMeasure},
-                            /*Calc =*/
-                                new CalcFunction()
-                                  {
-                                    public double Calculate
-                                      (
-                                        double[] Args
-                                      )
-                                      {
-                                        return
-                                            Args[1] / AspectDiag(Args[0]);
-                                      } /*Calculate*/
-                                  } /*CalcFunction*/
-                          ),
-                        new ParamDef.Entry
-                          (
-                            /*ArgNames =*/ new FieldName[] {FieldName.AspectRatio, FieldName.HeightMeasure},
-                            /*Calc =*/
-                                new CalcFunction()
-                                  {
-                                    public double Calculate
-                                      (
-                                        double[] Args
-                                      )
-                                      {
-                                        return
-                                            Args[1] / Args[0];
-                                      } /*Calculate*/
-                                  } /*CalcFunction*/
-                          ),
-                        new ParamDef.Entry
-                          (
-                            /*ArgNames =*/ new FieldName[] {FieldName.PixelDensity, FieldName.WidthPixels},
-                            /*Calc =*/
-                                new CalcFunction()
-                                  {
-                                    public double Calculate
-                                      (
-                                        double[] Args
-                                      )
-                                      {
-                                        return
-                                            Args[1] / Args[0];
-                                      } /*Calculate*/
-                                  } /*CalcFunction*/
-                          ),
-                        new ParamDef.Entry
-                          (
-                            /*ArgNames =*/ new FieldName[] {FieldName.DiagMeasure, FieldName.HeightMeasure},
-                            /*Calc =*/
-                                new CalcFunction()
-                                  {
-                                    public double Calculate
-                                      (
-                                        double[] Args
-                                      )
-                                      {
-                                        return
-                                            Math.sqrt(Args[0] * Args[0] - Args[1] * Args[1]);
-                                      } /*Calculate*/
-                                  } /*CalcFunction*/
-                          ),
-                    }
-              )
-          );
-        ParamDefs.put
-          (
-            FieldName.DiagMeasure,
-            new ParamDef
-              (
-                /*Type =*/ ParamDef.ParamTypes.TYPE_DISTANCE,
-                /*Parse =*/ new ParseDistance(),
-                /*Calculate =*/ new ParamDef.Entry[]
-                    {
-                        new ParamDef.Entry
-                          (
-                            /*ArgNames =*/ new FieldName[] {FieldName.AspectRatio, FieldName.HeightMeasure},
-                            /*Calc =*/
-                                new CalcFunction()
-                                  {
-                                    public double Calculate
-                                      (
-                                        double[] Args
-                                      )
-                                      {
-                                        return
-                                            Args[1] / Args[0] * AspectDiag(Args[0]);
-                                      } /*Calculate*/
-                                  } /*CalcFunction*/
-                          ),
-                        new ParamDef.Entry
-                          (
-                            /*ArgNames =*/ new FieldName[] {FieldName.AspectRatio, FieldName.WidthMeasure},
-                            /*Calc =*/
-                                new CalcFunction()
-                                  {
-                                    public double Calculate
-                                      (
-                                        double[] Args
-                                      )
-                                      {
-                                        return
-                                            Args[1] * AspectDiag(Args[0]);
-                                      } /*Calculate*/
-                                  } /*CalcFunction*/
-                          ),
-                        new ParamDef.Entry
-                          (
-                            /*ArgNames =*/ new FieldName[] {FieldName.HeightMeasure, FieldName.WidthMeasure},
-                            /*Calc =*/
-                                new CalcFunction()
-                                  {
-                                    public double Calculate
-                                      (
-                                        double[] Args
-                                      )
-                                      {
-                                        return
-                                            Math.hypot(Args[0], Args[1]);
-                                      } /*Calculate*/
-                                  } /*CalcFunction*/
-                          ),
-                    }
-              )
-          );
-        ParamDefs.put
-          (
-            FieldName.HeightPixels,
-            new ParamDef
-              (
-                /*Type =*/ ParamDef.ParamTypes.TYPE_PIXELS,
-                /*Parse =*/ new ParseInt(),
-                /*Calculate =*/ new ParamDef.Entry[]
-                    {
-                        new ParamDef.Entry
-                          (
-                            /*ArgNames =*/ new FieldName[] {FieldName.AspectRatio, FieldName.TotalPixels},
-                            /*Calc =*/
-                                new CalcFunction()
-                                  {
-                                    public double Calculate
-                                      (
-                                        double[] Args
-                                      )
-                                      {
-                                        return
-                                            Math.sqrt(Args[1] * Args[0]);
-                                      } /*Calculate*/
-                                  } /*CalcFunction*/
-                          ),
-                        new ParamDef.Entry
-                          (
-                            /*ArgNames =*/ new FieldName[] {FieldName.AspectRatio, FieldName.WidthPixels},
-                            /*Calc =*/
-                                new CalcFunction()
-                                  {
-                                    public double Calculate
-                                      (
-                                        double[] Args
-                                      )
-                                      {
-                                        return
-                                            Args[1] * Args[0];
-                                      } /*Calculate*/
-                                  } /*CalcFunction*/
-                          ),
-                        new ParamDef.Entry
-                          (
-                            /*ArgNames =*/ new FieldName[] {FieldName.PixelDensity, FieldName.HeightMeasure},
-                            /*Calc =*/
-                                new CalcFunction()
-                                  {
-                                    public double Calculate
-                                      (
-                                        double[] Args
-                                      )
-                                      {
-                                        return
-                                            Args[1] * Args[0];
-                                      } /*Calculate*/
-                                  } /*CalcFunction*/
-                          ),
-                        new ParamDef.Entry
-                          (
-                            /*ArgNames =*/ new FieldName[] {FieldName.TotalPixels, FieldName.WidthPixels},
-                            /*Calc =*/
-                                new CalcFunction()
-                                  {
-                                    public double Calculate
-                                      (
-                                        double[] Args
-                                      )
-                                      {
-                                        return
-                                            Args[0] / Args[1];
-                                      } /*Calculate*/
-                                  } /*CalcFunction*/
-                          ),
-                    }
-              )
-          );
-        ParamDefs.put
-          (
-            FieldName.WidthPixels,
-            new ParamDef
-              (
-                /*Type =*/ ParamDef.ParamTypes.TYPE_PIXELS,
-                /*Parse =*/ new ParseInt(),
-                /*Calculate =*/ new ParamDef.Entry[]
-                    {
-                        new ParamDef.Entry
-                          (
-                            /*ArgNames =*/ new FieldName[] {FieldName.AspectRatio, FieldName.HeightPixels},
-                            /*Calc =*/
-                                new CalcFunction()
-                                  {
-                                    public double Calculate
-                                      (
-                                        double[] Args
-                                      )
-                                      {
-                                        return
-                                            Args[1] / Args[0];
-                                      } /*Calculate*/
-                                  } /*CalcFunction*/
-                          ),
-                        new ParamDef.Entry
-                          (
-                            /*ArgNames =*/ new FieldName[] {FieldName.AspectRatio, FieldName.TotalPixels},
-                            /*Calc =*/
-                                new CalcFunction()
-                                  {
-                                    public double Calculate
-                                      (
-                                        double[] Args
-                                      )
-                                      {
-                                        return
-                                            Math.sqrt(Args[1] / Args[0]);
-                                      } /*Calculate*/
-                                  } /*CalcFunction*/
-                          ),
-                        new ParamDef.Entry
-                          (
-                            /*ArgNames =*/ new FieldName[] {FieldName.PixelDensity, FieldName.WidthMeasure},
-                            /*Calc =*/
-                                new CalcFunction()
-                                  {
-                                    public double Calculate
-                                      (
-                                        double[] Args
-                                      )
-                                      {
-                                        return
-                                            Args[1] * Args[0];
-                                      } /*Calculate*/
-                                  } /*CalcFunction*/
-                          ),
-                        new ParamDef.Entry
-                          (
-                            /*ArgNames =*/ new FieldName[] {FieldName.TotalPixels, FieldName.HeightPixels},
-                            /*Calc =*/
-                                new CalcFunction()
-                                  {
-                                    public double Calculate
-                                      (
-                                        double[] Args
-                                      )
-                                      {
-                                        return
-                                            Args[0] / Args[1];
-                                      } /*Calculate*/
-                                  } /*CalcFunction*/
-                          ),
-                    }
-              )
-          );
-        ParamDefs.put
-          (
-            FieldName.TotalPixels,
-            new ParamDef
-              (
-                /*Type =*/ ParamDef.ParamTypes.TYPE_PIXELS,
-                /*Parse =*/ new ParseInt(),
-                /*Calculate =*/ new ParamDef.Entry[]
-                    {
-                        new ParamDef.Entry
-                          (
-                            /*ArgNames =*/ new FieldName[] {FieldName.HeightPixels, FieldName.WidthPixels},
-                            /*Calc =*/
-                                new CalcFunction()
-                                  {
-                                    public double Calculate
-                                      (
-                                        double[] Args
-                                      )
-                                      {
-                                        return
-                                            Args[0] * Args[1];
-                                      } /*Calculate*/
-                                  } /*CalcFunction*/
-                          ),
-                    }
-              )
-          );
-        ParamDefs.put
-          (
-            FieldName.PixelDensity,
-            new ParamDef
-              (
-                /*Type =*/ ParamDef.ParamTypes.TYPE_DENSITY,
-                /*Parse =*/ new ParseDensity(),
-                /*Calculate =*/ new ParamDef.Entry[]
-                    {
-                        new ParamDef.Entry
-                          (
-                            /*ArgNames =*/ new FieldName[] {FieldName.ViewingDistance},
-                            /*Calc =*/
-                                new CalcFunction()
-                                  {
-                                    public double Calculate
-                                      (
-                                        double[] Args
-                                      )
-                                      {
-                                        return
-                                            acuity_factor / Args[0];
-                                      } /*Calculate*/
-                                  } /*CalcFunction*/
-                          ),
-                        new ParamDef.Entry
-                          (
-                            /*ArgNames =*/ new FieldName[] {FieldName.HeightMeasure, FieldName.HeightPixels},
-                            /*Calc =*/
-                                new CalcFunction()
-                                  {
-                                    public double Calculate
-                                      (
-                                        double[] Args
-                                      )
-                                      {
-                                        return
-                                            Args[1] / Args[0];
-                                      } /*Calculate*/
-                                  } /*CalcFunction*/
-                          ),
-                        new ParamDef.Entry
-                          (
-                            /*ArgNames =*/ new FieldName[] {FieldName.WidthMeasure, FieldName.WidthPixels},
-                            /*Calc =*/
-                                new CalcFunction()
-                                  {
-                                    public double Calculate
-                                      (
-                                        double[] Args
-                                      )
-                                      {
-                                        return
-                                            Args[1] / Args[0];
-                                      } /*Calculate*/
-                                  } /*CalcFunction*/
-                          ),
-                    }
-              )
-          );
-        ParamDefs.put
-          (
-            FieldName.AspectRatio,
-            new ParamDef
-              (
-                /*Type =*/ ParamDef.ParamTypes.TYPE_RATIO,
-                /*Parse =*/ new ParseRatio(),
-                /*Calculate =*/ new ParamDef.Entry[]
-                    {
-                        new ParamDef.Entry
-                          (
-                            /*ArgNames =*/ new FieldName[] {FieldName.HeightMeasure, FieldName.WidthMeasure},
-                            /*Calc =*/
-                                new CalcFunction()
-                                  {
-                                    public double Calculate
-                                      (
-                                        double[] Args
-                                      )
-                                      {
-                                        return
-                                            Args[0] / Args[1];
-                                      } /*Calculate*/
-                                  } /*CalcFunction*/
-                          ),
-                        new ParamDef.Entry
-                          (
-                            /*ArgNames =*/ new FieldName[] {FieldName.HeightPixels, FieldName.WidthPixels},
-                            /*Calc =*/
-                                new CalcFunction()
-                                  {
-                                    public double Calculate
-                                      (
-                                        double[] Args
-                                      )
-                                      {
-                                        return
-                                            Args[0] / Args[1];
-                                      } /*Calculate*/
-                                  } /*CalcFunction*/
-                          ),
-                    }
-              )
-          );
-        ParamDefs.put
-          (
-            FieldName.ViewingDistance,
-            new ParamDef
-              (
-                /*Type =*/ ParamDef.ParamTypes.TYPE_DISTANCE,
-                /*Parse =*/ new ParseDistance(),
-                /*Calculate =*/ new ParamDef.Entry[]
-                    {
-                        new ParamDef.Entry
-                          (
-                            /*ArgNames =*/ new FieldName[] {FieldName.PixelDensity},
-                            /*Calc =*/
-                                new CalcFunction()
-                                  {
-                                    public double Calculate
-                                      (
-                                        double[] Args
-                                      )
-                                      {
-                                        return
-                                            acuity_factor / Args[0];
-                                      } /*Calculate*/
-                                  } /*CalcFunction*/
-                          ),
-                    }
-              )
-          );
+        Define(FieldName.HeightMeasure, ParamDef.ParamTypes.TYPE_DISTANCE, DistanceParser);
+        Define(FieldName.WidthMeasure, ParamDef.ParamTypes.TYPE_DISTANCE, DistanceParser);
+        Define(FieldName.DiagMeasure, ParamDef.ParamTypes.TYPE_DISTANCE, DistanceParser);
+        Define(FieldName.HeightPixels, ParamDef.ParamTypes.TYPE_PIXELS, IntParser);
+        Define(FieldName.WidthPixels, ParamDef.ParamTypes.TYPE_PIXELS, IntParser);
+        Define(FieldName.TotalPixels, ParamDef.ParamTypes.TYPE_PIXELS, IntParser);
+        Define(FieldName.PixelDensity, ParamDef.ParamTypes.TYPE_DENSITY, DensityParser);
+        Define(FieldName.AspectRatio, ParamDef.ParamTypes.TYPE_RATIO, new ParseRatio());
+        Define(FieldName.ViewingDistance, ParamDef.ParamTypes.TYPE_DISTANCE, DistanceParser);
       }
 
-    public String FormatField
+    private void Define
       (
         FieldName Name,
-        double FieldValue
+        ParamDef.ParamTypes Type,
+        Parser Parse
       )
+      /* adds the ParamDef for Name, with all the rules in RuleTable which
+        compute it. */
       {
-        double Multiplier = CurUnits == Units.UNITS_CM ? 1.0 : 1.0 / cm_per_in;
-        String Suffix = "";
-        String Format = "%.2f";
-        final ParamDef.ParamTypes ParamType = ParamDefs.get(Name).Type;
-        switch (ParamType)
+        final java.util.ArrayList<ParamDef.Entry> Calculate = new java.util.ArrayList<ParamDef.Entry>();
+        for (Formula ThisRule : RuleTable)
           {
-        case TYPE_RATIO:
-          /* handled specially below */
-        break;
-        case TYPE_DISTANCE:
-            Suffix = CurUnits == Units.UNITS_CM ? "cm" : "in";
-        break;
-        case TYPE_PIXELS:
-            Format = "%.0f";
-            Multiplier = 1.0;
-        break;
-        case TYPE_DENSITY:
-            Format = "%.1f";
-            switch (CurUnits)
+            if (ThisRule.Target == Name)
               {
-            case UNITS_CM:
-                Suffix = "dpcm";
-            break;
-            case UNITS_IN:
-                Multiplier = cm_per_in;
-                Suffix = "dpi";
-            break;
-              } /*switch*/
-        break;
-          } /*switch*/
+                Calculate.add(new ParamDef.Entry(ThisRule));
+              } /*if*/
+          } /*for*/
+        Defs.put(Name, new ParamDef(Type, Parse, Calculate.toArray(new ParamDef.Entry[Calculate.size()])));
+      } /*Define*/
+
+    public final java.util.Map<FieldName, ParamDef> ParamDefs =
+        java.util.Collections.unmodifiableMap(Defs);
+
+    public final RuleGraph Graph = new RuleGraph(ParamDefs);
+      /* compiled form of ParamDefs, must come after it */
+
+    private final ThreadLocal<FieldFormatter> Formatters =
+        new ThreadLocal<FieldFormatter>()
+          {
+            @Override
+            protected FieldFormatter initialValue()
+              {
+                return
+                    new FieldFormatter(Rules.this);
+              } /*initialValue*/
+          };
+      /* FieldFormatters are not thread-safe, so each thread gets its own */
+
+    public String FormatField
+      (
+        FieldName Name,
+        double FieldValue,
+        Units CurUnits
+      )
+      /* for appending to a buffer without creating a String, use a
+        FieldFormatter directly. */
+      {
+        final java.util.Locale CurLocale = java.util.Locale.getDefault();
+        FieldFormatter Formatter = Formatters.get();
+        if (!Formatter.TheLocale.equals(CurLocale))
+          {
+          /* default locale changed since this thread's formatter was made */
+            Formatter = new FieldFormatter(this, CurLocale);
+            Formatters.set(Formatter);
+          } /*if*/
         return
-            ParamType == ParamDef.ParamTypes.TYPE_RATIO ?
-                NumberUseful.Fraction.FromReal(FieldValue).toString()
-            :
-                String.format(Format, FieldValue * Multiplier) + Suffix;
+            Formatter.FormatField(Name, FieldValue, CurUnits);
       } /*FormatField*/
 
     public static enum ComputeStatus
@@ -919,6 +844,17 @@ public class Rules
         COMPUTE_INCOMPLETE,
       } /*ComputeStatus*/;
 
+    public ComputeStatus ComputeParams
+      (
+        ScreenParams Params
+      )
+      /* tries to fill in all missing parameter values in Params based
+        on the known ones, without any allocation. */
+      {
+        return
+            Graph.Solve(Params);
+      } /*ComputeParams*/
+
     public ComputeStatus ComputeParams
       (
         java.util.Map<FieldName, Double> Params,
@@ -928,62 +864,18 @@ public class Rules
       /* tries to fill in Params with all missing parameter values based
         on the existing ones. */
       {
-        ComputeStatus Status = ComputeStatus.COMPUTE_DONE;
-        for (;;)
+        final ScreenParams Solve = new ScreenParams();
+        Solve.SetFrom(Params);
+        final ComputeStatus Status = ComputeParams(Solve);
+        for (FieldName Name : FieldName.values())
           {
-            boolean DidSomething = false;
-            boolean LeftUndone = false;
-            for (FieldName Name : FieldName.values())
+            if ((Solve.Computed & 1 << Name.ordinal()) != 0)
               {
-                if (!Params.containsKey(Name))
+                Params.put(Name, Solve.Get(Name));
+                if (Computed != null)
                   {
-                    final ParamDef ThisParam = ParamDefs.get(Name);
-                    boolean DidThis = false;
-                    for (FieldName[] ArgNames : ThisParam.Calculate.keySet())
-                      {
-                        boolean GotAll = true; /* to begin with */
-                        for (FieldName ArgName : ArgNames)
-                          {
-                            if (!Params.containsKey(ArgName))
-                              {
-                                GotAll = false;
-                                break;
-                              } /*if*/
-                          } /*for*/
-                        if (GotAll)
-                          {
-                            final double[] Args = new double[ArgNames.length];
-                            for (int i = 0; i < ArgNames.length; ++i)
-                              {
-                                Args[i] = Params.get(ArgNames[i]);
-                              } /*for*/
-                            final double FieldValue =
-                                ThisParam.Calculate.get(ArgNames).Calculate(Args);
-                            Params.put(Name, FieldValue);
-                            if (Computed != null)
-                              {
-                                Computed.add(Name);
-                              } /*if*/
-                            DidThis = true;
-                            break;
-                          } /*if*/
-                      } /*for*/
-                    if (DidThis)
-                      {
-                        DidSomething = true;
-                      }
-                    else
-                      {
-                        LeftUndone = true;
-                      } /*if*/
+                    Computed.add(Name);
                   } /*if*/
-              } /*for*/
-            if (!LeftUndone)
-                break;
-            if (!DidSomething)
-              {
-                Status = ComputeStatus.COMPUTE_INCOMPLETE;
-                break;
               } /*if*/
           } /*for*/
         return
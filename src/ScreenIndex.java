@@ -0,0 +1,569 @@
+package nz.gen.geek_central.screencalc;
+/*
+    Index for finding the screens in a solved catalogue that are most
+    similar to a given one, as measured on a chosen set of fields, each
+    with its own weight. Similarity is Euclidean distance between the
+    weighted field values, so weights will normally be chosen to scale
+    each field by the size of difference that matters for it.
+
+    The index is a k-d tree stored implicitly in flat arrays: the points
+    in each subtree occupy a contiguous range, with the splitting point
+    in the middle, points on the low side of it before and points on the
+    high side after. Each split is on the dimension with the greatest
+    spread over the points in its range, and small enough ranges are
+    left as leaves to be scanned linearly. Once built, the index never
+    changes, and can be queried from any number of threads at once, each
+    with its own Query object.
+
+    There should be nothing Android-specific in this source file.
+
+    Copyright 2014 Lawrence D'Oliveiro <ldo@geek-central.gen.nz>.
+
+    This program is free software: you can redistribute it and/or
+    modify it under the terms of the GNU General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+    General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import static nz.gen.geek_central.screencalc.Rules.FieldName;
+
+public class ScreenIndex
+  {
+    static final int LeafSize = 8; /* ranges no bigger than this are not split */
+    static final int MinTaskSize = 65536;
+      /* ranges no bigger than this are not split further into separate tasks */
+
+    public final FieldName[] Fields; /* fields being compared, one per dimension */
+    public final double[] Weights; /* one per dimension */
+    public final int NrDims;
+    public final int NrPoints; /* number of rows indexed */
+    private final int[] FieldOrdinals;
+    private final double[] Coords; /* weighted values, NrDims per point, in tree order */
+    private final int[] Rows; /* original row number for each point, in tree order */
+    private final byte[] SplitDim; /* for each point that splits a range, the dimension split on */
+
+    public ScreenIndex
+      (
+        double[][] Columns, /* indexed by FieldName.ordinal(), then by row */
+        int[] Known, /* mask of known fields for each row */
+        int NrRows,
+        FieldName[] Fields,
+        double[] Weights, /* one per field */
+        ExecutorService Executor /* optional, to build the subtrees in parallel */
+      )
+      /* indexes those rows in [0 .. NrRows) for which all of Fields are
+        known and finite. */
+      {
+        if (Fields.length == 0 || Fields.length != Weights.length)
+          {
+            throw new IllegalArgumentException("need at least one field, and one weight for each");
+          } /*if*/
+        this.Fields = Fields.clone();
+        this.Weights = Weights.clone();
+        NrDims = Fields.length;
+        FieldOrdinals = new int[NrDims];
+        int Need = 0;
+        for (int Dim = 0; Dim < NrDims; ++Dim)
+          {
+            FieldOrdinals[Dim] = Fields[Dim].ordinal();
+            Need |= 1 << FieldOrdinals[Dim];
+          } /*for*/
+        int Count = 0;
+        final int[] Perm = new int[NrRows];
+        for (int Row = 0; Row < NrRows; ++Row)
+          {
+            boolean Usable = (Known[Row] & Need) == Need;
+            for (int Dim = 0; Usable && Dim < NrDims; ++Dim)
+              {
+                final double Value = Columns[FieldOrdinals[Dim]][Row];
+                Usable = !Double.isNaN(Value) && !Double.isInfinite(Value);
+              } /*for*/
+            if (Usable)
+              {
+                Perm[Count++] = Row;
+              } /*if*/
+          } /*for*/
+        NrPoints = Count;
+        Rows = java.util.Arrays.copyOf(Perm, NrPoints);
+        Coords = new double[NrPoints * NrDims];
+        for (int Point = 0; Point < NrPoints; ++Point)
+          {
+            for (int Dim = 0; Dim < NrDims; ++Dim)
+              {
+                Coords[Point * NrDims + Dim] = Columns[FieldOrdinals[Dim]][Rows[Point]] * Weights[Dim];
+              } /*for*/
+          } /*for*/
+        SplitDim = new byte[NrPoints];
+      /* split the top levels on this thread, until the ranges are small
+        enough to hand out as separate tasks */
+        final ArrayList<int[]> Pending = new ArrayList<int[]>();
+        final ArrayList<int[]> Ranges = new ArrayList<int[]>();
+        Pending.add(new int[] {0, NrPoints});
+        while (Pending.size() != 0)
+          {
+            final int[] Range = Pending.remove(Pending.size() - 1);
+            if (Executor == null || Range[1] - Range[0] <= MinTaskSize)
+              {
+                Ranges.add(Range);
+              }
+            else
+              {
+                final int Mid = Split(Range[0], Range[1]);
+                Pending.add(new int[] {Range[0], Mid});
+                Pending.add(new int[] {Mid + 1, Range[1]});
+              } /*if*/
+          } /*while*/
+        if (Executor != null)
+          {
+            final ArrayList<Future<Object>> Tasks = new ArrayList<Future<Object>>();
+            for (final int[] Range : Ranges)
+              {
+                Tasks.add
+                  (
+                    Executor.submit
+                      (
+                        new Callable<Object>()
+                          {
+                            public Object call()
+                              {
+                                Build(Range[0], Range[1]);
+                                return
+                                    null;
+                              } /*call*/
+                          } /*Callable*/
+                      )
+                  );
+              } /*for*/
+            try
+              {
+                for (Future<Object> Task : Tasks)
+                  {
+                    Task.get();
+                  } /*for*/
+              }
+            catch (InterruptedException Interrupted)
+              {
+                for (Future<Object> Task : Tasks)
+                  {
+                    Task.cancel(true);
+                  } /*for*/
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("index build interrupted");
+              }
+            catch (java.util.concurrent.ExecutionException Failed)
+              {
+                if (Failed.getCause() instanceof RuntimeException)
+                  {
+                    throw (RuntimeException)Failed.getCause();
+                  } /*if*/
+                throw new RuntimeException("index build failed", Failed.getCause());
+              } /*try*/
+          }
+        else
+          {
+            Build(0, NrPoints);
+          } /*if*/
+      } /*ScreenIndex*/
+
+    public ScreenIndex
+      (
+        double[][] Columns,
+        int[] Known,
+        FieldName[] Fields,
+        double[] Weights
+      )
+      /* indexes all the rows, building on the calling thread. */
+      {
+        this(Columns, Known, Known.length, Fields, Weights, null);
+      } /*ScreenIndex*/
+
+    private void Swap
+      (
+        int A,
+        int B
+      )
+      /* swaps the points at the specified positions. */
+      {
+        final int TempRow = Rows[A];
+        Rows[A] = Rows[B];
+        Rows[B] = TempRow;
+        for (int Dim = 0; Dim < NrDims; ++Dim)
+          {
+            final double TempCoord = Coords[A * NrDims + Dim];
+            Coords[A * NrDims + Dim] = Coords[B * NrDims + Dim];
+            Coords[B * NrDims + Dim] = TempCoord;
+          } /*for*/
+      } /*Swap*/
+
+    private int Split
+      (
+        int From,
+        int To
+      )
+      /* chooses the dimension with the greatest spread over the points
+        in [From .. To), and rearranges them so the point in the middle
+        has only points no greater in that dimension before it, and only
+        points no less after it. Returns the position of the middle. */
+      {
+        int Dim = 0;
+          {
+            double MaxSpread = -1.0;
+            for (int ThisDim = 0; ThisDim < NrDims; ++ThisDim)
+              {
+                double Min = Double.POSITIVE_INFINITY, Max = Double.NEGATIVE_INFINITY;
+                for (int Point = From; Point < To; ++Point)
+                  {
+                    final double Coord = Coords[Point * NrDims + ThisDim];
+                    Min = Math.min(Min, Coord);
+                    Max = Math.max(Max, Coord);
+                  } /*for*/
+                if (Max - Min > MaxSpread)
+                  {
+                    MaxSpread = Max - Min;
+                    Dim = ThisDim;
+                  } /*if*/
+              } /*for*/
+          }
+        final int Mid = (From + To) >>> 1;
+      /* quickselect, with median-of-three pivots */
+        int Lo = From, Hi = To - 1;
+        while (Lo < Hi)
+          {
+            final int Centre = (Lo + Hi) >>> 1;
+            if (Coords[Centre * NrDims + Dim] < Coords[Lo * NrDims + Dim])
+              {
+                Swap(Centre, Lo);
+              } /*if*/
+            if (Coords[Hi * NrDims + Dim] < Coords[Lo * NrDims + Dim])
+              {
+                Swap(Hi, Lo);
+              } /*if*/
+            if (Coords[Hi * NrDims + Dim] < Coords[Centre * NrDims + Dim])
+              {
+                Swap(Hi, Centre);
+              } /*if*/
+            final double Pivot = Coords[Centre * NrDims + Dim];
+            int i = Lo, j = Hi;
+            for (;;)
+              {
+                while (Coords[i * NrDims + Dim] < Pivot)
+                  {
+                    ++i;
+                  } /*while*/
+                while (Coords[j * NrDims + Dim] > Pivot)
+                  {
+                    --j;
+                  } /*while*/
+                if (i > j)
+                    break;
+                Swap(i, j);
+                ++i;
+                --j;
+              } /*for*/
+          /* now [Lo .. j] <= Pivot, [i .. Hi] >= Pivot, anything between == Pivot */
+            if (Mid <= j)
+              {
+                Hi = j;
+              }
+            else if (Mid >= i)
+              {
+                Lo = i;
+              }
+            else
+              {
+                break;
+              } /*if*/
+          } /*while*/
+        SplitDim[Mid] = (byte)Dim;
+        return
+            Mid;
+      } /*Split*/
+
+    private void Build
+      (
+        int From,
+        int To
+      )
+      /* builds the subtree for the points in [From .. To). */
+      {
+        if (To - From > LeafSize)
+          {
+            final int Mid = Split(From, To);
+            Build(From, Mid);
+            Build(Mid + 1, To);
+          } /*if*/
+      } /*Build*/
+
+    public class Query
+      {
+      /* for doing searches of the index. Not safe for concurrent use, but
+        reusable for any number of searches without further allocation
+        (unless WithinRadius finds more points than ever before). */
+        private final double[] Target = new double[NrDims]; /* weighted */
+        public int NrFound = 0; /* number of results from last search */
+        public int[] FoundRows = new int[0];
+          /* original row numbers of results, in order of increasing distance */
+        public double[] FoundDistances = new double[0];
+          /* corresponding distances */
+        private int K; /* number of nearest neighbours wanted */
+        private double Radius2; /* current squared search radius */
+
+        private void SetTarget
+          (
+            ScreenParams Params /* only the values of the indexed fields are used */
+          )
+          {
+            for (int Dim = 0; Dim < NrDims; ++Dim)
+              {
+                Target[Dim] = Params.Values[FieldOrdinals[Dim]] * Weights[Dim];
+              } /*for*/
+          } /*SetTarget*/
+
+        private void Reserve
+          (
+            int Size
+          )
+          {
+            if (FoundRows.length < Size)
+              {
+                final int NewSize = Math.max(Size, FoundRows.length * 2);
+                FoundRows = java.util.Arrays.copyOf(FoundRows, NewSize);
+                FoundDistances = java.util.Arrays.copyOf(FoundDistances, NewSize);
+              } /*if*/
+          } /*Reserve*/
+
+        private double Distance2
+          (
+            int Point
+          )
+          {
+            double Sum = 0.0;
+            for (int Dim = 0; Dim < NrDims; ++Dim)
+              {
+                final double Diff = Coords[Point * NrDims + Dim] - Target[Dim];
+                Sum += Diff * Diff;
+              } /*for*/
+            return
+                Sum;
+          } /*Distance2*/
+
+        private int SiftDown
+          (
+            int Pos,
+            double Dist2,
+            int Size
+          )
+          /* finds where in the max-heap of the first Size results an entry
+            with distance Dist2 should go, if the one at Pos were to be
+            replaced with it, moving the others down to make room. */
+          {
+            for (;;)
+              {
+                int Child = 2 * Pos + 1;
+                if (Child >= Size)
+                    break;
+                if (Child + 1 < Size && FoundDistances[Child + 1] > FoundDistances[Child])
+                  {
+                    ++Child;
+                  } /*if*/
+                if (FoundDistances[Child] <= Dist2)
+                    break;
+                FoundRows[Pos] = FoundRows[Child];
+                FoundDistances[Pos] = FoundDistances[Child];
+                Pos = Child;
+              } /*for*/
+            return
+                Pos;
+          } /*SiftDown*/
+
+        private void Offer
+          (
+            int Point,
+            double Dist2
+          )
+          /* adds a point to the results. For nearest-neighbour searches, the
+            results are kept as a max-heap on distance, of at most K entries. */
+          {
+            if (K == 0)
+              {
+              /* radius search */
+                Reserve(NrFound + 1);
+                FoundRows[NrFound] = Rows[Point];
+                FoundDistances[NrFound] = Dist2;
+                ++NrFound;
+              }
+            else
+              {
+                int Pos;
+                if (NrFound < K)
+                  {
+                  /* sift up from new last position */
+                    Pos = NrFound++;
+                    while (Pos > 0)
+                      {
+                        final int Parent = (Pos - 1) / 2;
+                        if (FoundDistances[Parent] >= Dist2)
+                            break;
+                        FoundRows[Pos] = FoundRows[Parent];
+                        FoundDistances[Pos] = FoundDistances[Parent];
+                        Pos = Parent;
+                      } /*while*/
+                  }
+                else
+                  {
+                  /* replace the furthest */
+                    Pos = SiftDown(0, Dist2, NrFound);
+                  } /*if*/
+                FoundRows[Pos] = Rows[Point];
+                FoundDistances[Pos] = Dist2;
+                if (NrFound == K)
+                  {
+                    Radius2 = FoundDistances[0];
+                  } /*if*/
+              } /*if*/
+          } /*Offer*/
+
+        private void Search
+          (
+            int From,
+            int To
+          )
+          /* looks for points within the current radius in the subtree for
+            [From .. To). */
+          {
+            if (To - From <= LeafSize)
+              {
+                for (int Point = From; Point < To; ++Point)
+                  {
+                    final double Dist2 = Distance2(Point);
+                    if (Dist2 <= Radius2)
+                      {
+                        Offer(Point, Dist2);
+                      } /*if*/
+                  } /*for*/
+              }
+            else
+              {
+                final int Mid = (From + To) >>> 1;
+                final int Dim = SplitDim[Mid];
+                final double Diff = Target[Dim] - Coords[Mid * NrDims + Dim];
+                final double Dist2 = Distance2(Mid);
+                if (Dist2 <= Radius2)
+                  {
+                    Offer(Mid, Dist2);
+                  } /*if*/
+                if (Diff < 0.0)
+                  {
+                    Search(From, Mid);
+                    if (Diff * Diff <= Radius2)
+                      {
+                        Search(Mid + 1, To);
+                      } /*if*/
+                  }
+                else
+                  {
+                    Search(Mid + 1, To);
+                    if (Diff * Diff <= Radius2)
+                      {
+                        Search(From, Mid);
+                      } /*if*/
+                  } /*if*/
+              } /*if*/
+          } /*Search*/
+
+        private void SortResults()
+          /* sorts the results into order of increasing distance, by
+            heapsort, and converts the squared distances to actual ones. */
+          {
+            if (K == 0)
+              {
+              /* radius search results are not yet a heap */
+                for (int i = NrFound / 2 - 1; i >= 0; --i)
+                  {
+                    final int Row = FoundRows[i];
+                    final double Dist2 = FoundDistances[i];
+                    final int Pos = SiftDown(i, Dist2, NrFound);
+                    FoundRows[Pos] = Row;
+                    FoundDistances[Pos] = Dist2;
+                  } /*for*/
+              } /*if*/
+            for (int End = NrFound - 1; End > 0; --End)
+              {
+                final int Row = FoundRows[End];
+                final double Dist2 = FoundDistances[End];
+                FoundRows[End] = FoundRows[0];
+                FoundDistances[End] = FoundDistances[0];
+                final int Pos = SiftDown(0, Dist2, End);
+                FoundRows[Pos] = Row;
+                FoundDistances[Pos] = Dist2;
+              } /*for*/
+            for (int i = 0; i < NrFound; ++i)
+              {
+                FoundDistances[i] = Math.sqrt(FoundDistances[i]);
+              } /*for*/
+          } /*SortResults*/
+
+        public int Nearest
+          (
+            ScreenParams Params, /* only the values of the indexed fields are used */
+            int K
+          )
+          /* finds the K indexed rows nearest to Params, returning the number
+            found (which will be less than K only if there are fewer rows in
+            the index). */
+          {
+            if (K <= 0)
+              {
+                throw new IllegalArgumentException("number of neighbours must be positive");
+              } /*if*/
+            SetTarget(Params);
+            Reserve(K);
+            this.K = K;
+            NrFound = 0;
+            Radius2 = Double.POSITIVE_INFINITY;
+            Search(0, NrPoints);
+            SortResults();
+            return
+                NrFound;
+          } /*Nearest*/
+
+        public int WithinRadius
+          (
+            ScreenParams Params, /* only the values of the indexed fields are used */
+            double Radius
+          )
+          /* finds all the indexed rows within Radius (in weighted units)
+            of Params, returning the number found. */
+          {
+            SetTarget(Params);
+            K = 0;
+            NrFound = 0;
+            Radius2 = Radius * Radius;
+            Search(0, NrPoints);
+            SortResults();
+            return
+                NrFound;
+          } /*WithinRadius*/
+
+      } /*Query*/;
+
+    public Query NewQuery()
+      {
+        return
+            new Query();
+      } /*NewQuery*/
+
+  } /*ScreenIndex*/;
@@ -0,0 +1,111 @@
+package nz.gen.geek_central.screencalc;
+/*
+    Primitive store for one set of screen parameter values, for passing
+    to Rules.ComputeParams without boxing or per-solve allocation.
+
+    There should be nothing Android-specific in this source file.
+
+    Copyright 2014 Lawrence D'Oliveiro <ldo@geek-central.gen.nz>.
+
+    This program is free software: you can redistribute it and/or
+    modify it under the terms of the GNU General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+    General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+*/
+
+import static nz.gen.geek_central.screencalc.Rules.FieldName;
+
+public class ScreenParams
+  {
+    public final double[] Values = new double[RuleGraph.NrFields];
+      /* indexed by FieldName.ordinal(), only meaningful where the Known bit is set */
+    public int Known;
+      /* bits by FieldName.ordinal() of fields with valid values */
+    public int Computed;
+      /* bits by FieldName.ordinal() of fields filled in by the last solve */
+
+    final double[][] ArgBufs = new double[RuleGraph.NrFields + 1][];
+      /* scratch arrays for passing arguments to Rules.CalcFunction, indexed
+        by number of arguments, allocated on first use. */
+
+    public boolean IsKnown
+      (
+        FieldName Name
+      )
+      {
+        return
+            (Known & 1 << Name.ordinal()) != 0;
+      } /*IsKnown*/
+
+    public double Get
+      (
+        FieldName Name
+      )
+      {
+        return
+            Values[Name.ordinal()];
+      } /*Get*/
+
+    public void Set
+      (
+        FieldName Name,
+        double Value
+      )
+      {
+        Values[Name.ordinal()] = Value;
+        Known |= 1 << Name.ordinal();
+      } /*Set*/
+
+    public void Clear
+      (
+        FieldName Name
+      )
+      {
+        Known &= ~(1 << Name.ordinal());
+        Computed &= ~(1 << Name.ordinal());
+      } /*Clear*/
+
+    public void ClearAll()
+      {
+        Known = 0;
+        Computed = 0;
+      } /*ClearAll*/
+
+    public void SetFrom
+      (
+        java.util.Map<FieldName, Double> Params
+      )
+      /* replaces my contents with the entries from Params. */
+      {
+        ClearAll();
+        for (java.util.Map.Entry<FieldName, Double> Entry : Params.entrySet())
+          {
+            Set(Entry.getKey(), Entry.getValue());
+          } /*for*/
+      } /*SetFrom*/
+
+    double[] ArgBuf
+      (
+        int NrArgs
+      )
+      {
+        double[] Result = ArgBufs[NrArgs];
+        if (Result == null)
+          {
+            Result = new double[NrArgs];
+            ArgBufs[NrArgs] = Result;
+          } /*if*/
+        return
+            Result;
+      } /*ArgBuf*/
+
+  } /*ScreenParams*/;
@@ -0,0 +1,312 @@
+package nz.gen.geek_central.screencalc;
+/*
+    Compact binary file format for large collections of screen parameter
+    sets, accessed by memory-mapping, so they can be solved in place
+    without any parsing or copying.
+
+    The file begins with a header of HeaderSize bytes: the 4 ASCII
+    characters "SCRC", then 32-bit integers for the format version, the
+    record size and a reserved word (zero). This is followed by records
+    of RecordSize bytes each: the parameter values as 64-bit IEEE doubles
+    in order of FieldName.ordinal(), then a 32-bit mask of known fields,
+    then a 32-bit mask of computed fields, both with bits by
+    FieldName.ordinal(). Values whose bits are not set in either mask are
+    meaningless. All numbers are little-endian.
+
+    There should be nothing Android-specific in this source file.
+
+    Copyright 2014 Lawrence D'Oliveiro <ldo@geek-central.gen.nz>.
+
+    This program is free software: you can redistribute it and/or
+    modify it under the terms of the GNU General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+    General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+*/
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import static nz.gen.geek_central.screencalc.Rules.FieldName;
+
+public class ScreenRecordFile
+  {
+    public static final int Magic = 'S' | 'C' << 8 | 'R' << 16 | 'C' << 24; /* as read little-endian */
+    public static final int Version = 1;
+    public static final int HeaderSize = 16;
+    public static final int KnownOffset = RuleGraph.NrFields * 8; /* within record */
+    public static final int ComputedOffset = KnownOffset + 4;
+    public static final int RecordSize = ComputedOffset + 4;
+
+    static final int RecordsPerSegment = Integer.MAX_VALUE / RecordSize;
+      /* a single mapping cannot exceed 2GiB, so larger files are mapped in segments */
+
+    public final long NrRecords;
+    public final boolean Writable;
+    private final java.io.RandomAccessFile TheFile;
+    private final ByteBuffer[] Segments;
+
+    private ScreenRecordFile
+      (
+        java.io.File FileName,
+        long NrRecords, /* -1 to open existing file, else create with this many */
+        boolean Writable
+      )
+    throws java.io.IOException
+      {
+        this.Writable = Writable;
+        TheFile = new java.io.RandomAccessFile(FileName, Writable ? "rw" : "r");
+        boolean OK = false;
+        try
+          {
+            final FileChannel Channel = TheFile.getChannel();
+            if (NrRecords >= 0)
+              {
+                TheFile.setLength(0);
+                TheFile.setLength(HeaderSize + NrRecords * RecordSize);
+                final ByteBuffer Header = ByteBuffer.allocate(HeaderSize).order(ByteOrder.LITTLE_ENDIAN);
+                Header.putInt(Magic).putInt(Version).putInt(RecordSize).putInt(0);
+                Header.flip();
+                Channel.write(Header, 0);
+              }
+            else
+              {
+                final ByteBuffer Header = ByteBuffer.allocate(HeaderSize).order(ByteOrder.LITTLE_ENDIAN);
+                while (Header.hasRemaining() && Channel.read(Header, Header.position()) > 0)
+                  {
+                  } /*while*/
+                Header.flip();
+                if
+                  (
+                        Header.remaining() != HeaderSize
+                    ||
+                        Header.getInt() != Magic
+                    ||
+                        Header.getInt() != Version
+                    ||
+                        Header.getInt() != RecordSize
+                  )
+                  {
+                    throw new java.io.IOException("not a screen record file: " + FileName);
+                  } /*if*/
+                if ((Channel.size() - HeaderSize) % RecordSize != 0)
+                  {
+                    throw new java.io.IOException("screen record file truncated: " + FileName);
+                  } /*if*/
+                NrRecords = (Channel.size() - HeaderSize) / RecordSize;
+              } /*if*/
+            this.NrRecords = NrRecords;
+            Segments = new ByteBuffer[(int)((NrRecords + RecordsPerSegment - 1) / RecordsPerSegment)];
+            for (int i = 0; i < Segments.length; ++i)
+              {
+                final long SegmentRecords = Math.min(NrRecords - (long)i * RecordsPerSegment, RecordsPerSegment);
+                Segments[i] =
+                    Channel.map
+                      (
+                        Writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY,
+                        HeaderSize + (long)i * RecordsPerSegment * RecordSize,
+                        SegmentRecords * RecordSize
+                      ).order(ByteOrder.LITTLE_ENDIAN);
+              } /*for*/
+            OK = true;
+          }
+        finally
+          {
+            if (!OK)
+              {
+                TheFile.close();
+              } /*if*/
+          } /*try*/
+      } /*ScreenRecordFile*/
+
+    public static ScreenRecordFile Create
+      (
+        java.io.File FileName,
+        long NrRecords
+      )
+      /* creates a new file (or replaces an existing one) with room for
+        NrRecords records, all initially with no fields known. */
+    throws java.io.IOException
+      {
+        return
+            new ScreenRecordFile(FileName, NrRecords, true);
+      } /*Create*/
+
+    public static ScreenRecordFile Open
+      (
+        java.io.File FileName,
+        boolean Writable
+      )
+      /* opens an existing file. */
+    throws java.io.IOException
+      {
+        return
+            new ScreenRecordFile(FileName, -1, Writable);
+      } /*Open*/
+
+    public void Close()
+    throws java.io.IOException
+      {
+        if (Writable)
+          {
+            for (ByteBuffer Segment : Segments)
+              {
+                ((java.nio.MappedByteBuffer)Segment).force();
+              } /*for*/
+          } /*if*/
+        TheFile.close();
+      } /*Close*/
+
+    public ByteBuffer Segment
+      (
+        long Record
+      )
+      /* returns the mapped buffer containing the specified record. */
+      {
+        return
+            Segments[(int)(Record / RecordsPerSegment)];
+      } /*Segment*/
+
+    public static int Offset
+      (
+        long Record
+      )
+      /* returns the offset of the specified record within its Segment. */
+      {
+        return
+            (int)(Record % RecordsPerSegment) * RecordSize;
+      } /*Offset*/
+
+    public double GetValue
+      (
+        long Record,
+        FieldName Name
+      )
+      {
+        return
+            Segment(Record).getDouble(Offset(Record) + Name.ordinal() * 8);
+      } /*GetValue*/
+
+    public int GetKnown
+      (
+        long Record
+      )
+      {
+        return
+            Segment(Record).getInt(Offset(Record) + KnownOffset);
+      } /*GetKnown*/
+
+    public int GetComputed
+      (
+        long Record
+      )
+      {
+        return
+            Segment(Record).getInt(Offset(Record) + ComputedOffset);
+      } /*GetComputed*/
+
+    public void Get
+      (
+        long Record,
+        ScreenParams Params
+      )
+      /* copies the specified record into Params. */
+      {
+        final ByteBuffer Buf = Segment(Record);
+        final int Offset = Offset(Record);
+        for (int i = 0; i < RuleGraph.NrFields; ++i)
+          {
+            Params.Values[i] = Buf.getDouble(Offset + i * 8);
+          } /*for*/
+        Params.Known = Buf.getInt(Offset + KnownOffset);
+        Params.Computed = Buf.getInt(Offset + ComputedOffset);
+      } /*Get*/
+
+    public void Put
+      (
+        long Record,
+        ScreenParams Params
+      )
+      /* copies Params into the specified record. Values for fields not
+        known are written as zero. */
+      {
+        final ByteBuffer Buf = Segment(Record);
+        final int Offset = Offset(Record);
+        for (int i = 0; i < RuleGraph.NrFields; ++i)
+          {
+            Buf.putDouble(Offset + i * 8, (Params.Known & 1 << i) != 0 ? Params.Values[i] : 0.0);
+          } /*for*/
+        Buf.putInt(Offset + KnownOffset, Params.Known);
+        Buf.putInt(Offset + ComputedOffset, Params.Computed);
+      } /*Put*/
+
+    public static void Solve
+      (
+        RuleGraph Graph,
+        ByteBuffer Buf,
+        int From,
+        int To
+      )
+      /* solves records [From, To) of Buf, which holds consecutive records
+        in the above format starting at offset 0, in place, using
+        RuleGraph.Solve on each record in turn. Computed values are written
+        back into the buffer, the known mask of each record
+        gets the computed fields added, and the computed mask is set to
+        just those. Fields in the computed mask beforehand are treated as
+        unknown, so solving the same records again gives the same result.
+        Absolute gets and puts are used throughout, so different threads
+        may safely solve disjoint ranges of the same buffer at once. */
+      {
+        final ScreenParams Params = new ScreenParams();
+        for (int Record = From; Record < To; ++Record)
+          {
+            final int Offset = Record * RecordSize;
+            for (int i = 0; i < RuleGraph.NrFields; ++i)
+              {
+                Params.Values[i] = Buf.getDouble(Offset + i * 8);
+              } /*for*/
+            Params.Known =
+                    Buf.getInt(Offset + KnownOffset)
+                &
+                    ~Buf.getInt(Offset + ComputedOffset)
+                &
+                    RuleGraph.AllFields;
+              /* leave out fields computed by a previous solve, so they get recomputed */
+            Graph.Solve(Params);
+            for (int i = 0; i < RuleGraph.NrFields; ++i)
+              {
+                if ((Params.Computed & 1 << i) != 0)
+                  {
+                    Buf.putDouble(Offset + i * 8, Params.Values[i]);
+                  } /*if*/
+              } /*for*/
+            Buf.putInt(Offset + KnownOffset, Params.Known);
+            Buf.putInt(Offset + ComputedOffset, Params.Computed);
+          } /*for*/
+      } /*Solve*/
+
+    public void Solve
+      (
+        RuleGraph Graph
+      )
+      /* solves all the records in the file, in place. */
+      {
+        if (!Writable)
+          {
+            throw new IllegalStateException("screen record file not opened for writing");
+          } /*if*/
+        for (ByteBuffer Segment : Segments)
+          {
+            Solve(Graph, Segment, 0, Segment.capacity() / RecordSize);
+          } /*for*/
+      } /*Solve*/
+
+  } /*ScreenRecordFile*/;
@@ -0,0 +1,424 @@
+package nz.gen.geek_central.screencalc;
+/*
+    Bounded cache of solved and formatted screen parameters, for when the
+    same combinations of inputs keep turning up. Entries are keyed on
+    which fields are known, their values (in the canonical units used by
+    Rules) and the unit system used for formatting, so a repeated query
+    can skip both the solving and the formatting of the computed fields.
+    The cache is divided into stripes, each an LRU map with its own lock
+    and its own share of the capacity, so that many threads can use it
+    at once without contending much for any single lock. Lookups that
+    hit allocate nothing.
+
+    There should be nothing Android-specific in this source file.
+
+    Copyright 2014 Lawrence D'Oliveiro <ldo@geek-central.gen.nz>.
+
+    This program is free software: you can redistribute it and/or
+    modify it under the terms of the GNU General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+    General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+*/
+
+import static nz.gen.geek_central.screencalc.Rules.FieldName;
+import static nz.gen.geek_central.screencalc.Rules.Units;
+
+public class SolveCache
+  {
+    public final Rules TheRules;
+
+    public static class Result
+      {
+      /* one cached solve. Never changes once constructed. */
+        public final int Known; /* bits by field ordinal of fields given as inputs */
+        public final int Computed; /* bits by field ordinal of fields computed from them */
+        public final Rules.ComputeStatus Status;
+        final double[] Values; /* indexed by field ordinal, only meaningful where Computed bit is set */
+        final String[] Formatted; /* indexed by field ordinal, non-null where Computed bit is set */
+
+        public Result
+          (
+            int Known,
+            int Computed,
+            double[] Values, /* indexed by field ordinal */
+            String[] Formatted /* indexed by field ordinal, only entries for computed fields are used */
+          )
+          {
+            this.Known = Known;
+            this.Computed = Computed;
+            Status =
+                (Known | Computed) == RuleGraph.AllFields ?
+                    Rules.ComputeStatus.COMPUTE_DONE
+                :
+                    Rules.ComputeStatus.COMPUTE_INCOMPLETE;
+            this.Values = new double[RuleGraph.NrFields];
+            this.Formatted = new String[RuleGraph.NrFields];
+            for (int Field = 0; Field < RuleGraph.NrFields; ++Field)
+              {
+                if ((Computed & 1 << Field) != 0)
+                  {
+                    this.Values[Field] = Values[Field];
+                    this.Formatted[Field] = Formatted[Field];
+                  } /*if*/
+              } /*for*/
+          } /*Result*/
+
+        public double Get
+          (
+            FieldName Name
+          )
+          /* returns the computed value of the specified field, only
+            meaningful if its Computed bit is set. */
+          {
+            return
+                Values[Name.ordinal()];
+          } /*Get*/
+
+        public String Formatted
+          (
+            FieldName Name
+          )
+          /* returns the formatted form of the computed value of the
+            specified field, or null if it was not computed. */
+          {
+            return
+                Formatted[Name.ordinal()];
+          } /*Formatted*/
+
+        public void CopyTo
+          (
+            ScreenParams Params
+          )
+          /* fills in the computed fields in Params, just as solving it
+            would. */
+          {
+            for (int Field = 0; Field < RuleGraph.NrFields; ++Field)
+              {
+                if ((Computed & 1 << Field) != 0)
+                  {
+                    Params.Values[Field] = Values[Field];
+                  } /*if*/
+              } /*for*/
+            Params.Known |= Computed;
+            Params.Computed = Computed;
+          } /*CopyTo*/
+
+      } /*Result*/;
+
+    private static class Key
+      {
+        int Known;
+        Units CurUnits;
+        final long[] Bits = new long[RuleGraph.NrFields];
+          /* canonicalized values of known fields, zero for the rest */
+        int Hash;
+
+        static long CanonBits
+          (
+            double Value
+          )
+          /* so values that compare equal, or are both NaN, make the same key. */
+          {
+            return
+                Double.doubleToLongBits(Value == 0.0 ? 0.0 : Value);
+          } /*CanonBits*/
+
+        static int HashOf
+          (
+            ScreenParams Params,
+            Units CurUnits
+          )
+          {
+            long Hash = Params.Known * 0x9E3779B97F4A7C15L + CurUnits.ordinal();
+            for (int Field = 0; Field < RuleGraph.NrFields; ++Field)
+              {
+                if ((Params.Known & 1 << Field) != 0)
+                  {
+                    Hash = (Hash ^ CanonBits(Params.Values[Field])) * 0xC2B2AE3D27D4EB4FL;
+                  } /*if*/
+              } /*for*/
+            Hash ^= Hash >>> 29;
+            return
+                (int)(Hash ^ Hash >>> 32);
+          } /*HashOf*/
+
+        void Set
+          (
+            ScreenParams Params,
+            Units CurUnits,
+            int Hash
+          )
+          {
+            Known = Params.Known;
+            this.CurUnits = CurUnits;
+            for (int Field = 0; Field < RuleGraph.NrFields; ++Field)
+              {
+                Bits[Field] = (Known & 1 << Field) != 0 ? CanonBits(Params.Values[Field]) : 0L;
+              } /*for*/
+            this.Hash = Hash;
+          } /*Set*/
+
+        Key Copy()
+          {
+            final Key Result = new Key();
+            Result.Known = Known;
+            Result.CurUnits = CurUnits;
+            System.arraycopy(Bits, 0, Result.Bits, 0, RuleGraph.NrFields);
+            Result.Hash = Hash;
+            return
+                Result;
+          } /*Copy*/
+
+        @Override
+        public int hashCode()
+          {
+            return
+                Hash;
+          } /*hashCode*/
+
+        @Override
+        public boolean equals
+          (
+            Object ObjOther
+          )
+          {
+            boolean Result = ObjOther instanceof Key;
+            if (Result)
+              {
+                final Key Other = (Key)ObjOther;
+                Result =
+                        Hash == Other.Hash
+                    &&
+                        Known == Other.Known
+                    &&
+                        CurUnits == Other.CurUnits
+                    &&
+                        java.util.Arrays.equals(Bits, Other.Bits);
+              } /*if*/
+            return
+                Result;
+          } /*equals*/
+
+      } /*Key*/;
+
+    private static class Stripe extends java.util.LinkedHashMap<Key, Result>
+      {
+      /* all access must be synchronized on the Stripe. */
+        static final long serialVersionUID = 0;
+        final int Capacity;
+        final Key Probe = new Key(); /* reused for lookups */
+        long Hits = 0, Misses = 0, Evictions = 0;
+
+        Stripe
+          (
+            int Capacity
+          )
+          {
+            super(16, 0.75f, /*accessOrder =*/ true);
+            this.Capacity = Capacity;
+          } /*Stripe*/
+
+        @Override
+        protected boolean removeEldestEntry
+          (
+            java.util.Map.Entry<Key, Result> Eldest
+          )
+          {
+            final boolean Remove = size() > Capacity;
+            if (Remove)
+              {
+                ++Evictions;
+              } /*if*/
+            return
+                Remove;
+          } /*removeEldestEntry*/
+
+      } /*Stripe*/;
+
+    private final Stripe[] Stripes;
+
+    public SolveCache
+      (
+        Rules TheRules,
+        int Capacity, /* maximum total number of entries */
+        int NrStripes
+          /* rounded up to a power of 2, but no more than Capacity */
+      )
+      {
+        if (Capacity <= 0 || NrStripes <= 0)
+          {
+            throw new IllegalArgumentException("SolveCache capacity and number of stripes must be positive");
+          } /*if*/
+        this.TheRules = TheRules;
+        int ActualStripes = 1;
+        while (ActualStripes < NrStripes && ActualStripes <= Capacity / 2)
+          {
+            ActualStripes <<= 1;
+          } /*while*/
+        Stripes = new Stripe[ActualStripes];
+        for (int i = 0; i < ActualStripes; ++i)
+          {
+          /* share out the remainder so the total is exactly Capacity */
+            Stripes[i] = new Stripe
+              (
+                Capacity / ActualStripes + (i < Capacity % ActualStripes ? 1 : 0)
+              );
+          } /*for*/
+      } /*SolveCache*/
+
+    private Stripe StripeFor
+      (
+        int Hash
+      )
+      {
+        return
+            Stripes[(Hash ^ Hash >>> 16) & Stripes.length - 1];
+      } /*StripeFor*/
+
+    public Result Get
+      (
+        ScreenParams Params, /* only Known and the values of the known fields are looked at */
+        Units CurUnits
+      )
+      /* returns the cached solve for the given inputs, or null if there
+        isn't one. */
+      {
+        final int Hash = Key.HashOf(Params, CurUnits);
+        final Stripe TheStripe = StripeFor(Hash);
+        Result TheResult;
+        synchronized (TheStripe)
+          {
+            TheStripe.Probe.Set(Params, CurUnits, Hash);
+            TheResult = TheStripe.get(TheStripe.Probe);
+            if (TheResult != null)
+              {
+                ++TheStripe.Hits;
+              }
+            else
+              {
+                ++TheStripe.Misses;
+              } /*if*/
+          } /*synchronized*/
+        return
+            TheResult;
+      } /*Get*/
+
+    public void Put
+      (
+        ScreenParams Params, /* only Known and the values of the known fields are looked at */
+        Units CurUnits,
+        Result TheResult
+      )
+      /* adds an entry for the solve of the given inputs, replacing any
+        existing one. */
+      {
+        final int Hash = Key.HashOf(Params, CurUnits);
+        final Stripe TheStripe = StripeFor(Hash);
+        synchronized (TheStripe)
+          {
+            TheStripe.Probe.Set(Params, CurUnits, Hash);
+            TheStripe.put(TheStripe.Probe.Copy(), TheResult);
+          } /*synchronized*/
+      } /*Put*/
+
+    public Result Solve
+      (
+        ScreenParams Params, /* only Known and the values of the known fields are looked at */
+        Units CurUnits
+      )
+      /* returns the solve for the given inputs, from the cache if
+        possible, otherwise doing it and adding it to the cache. Params is
+        left unchanged; use Result.CopyTo to fill it in. */
+      {
+        Result TheResult = Get(Params, CurUnits);
+        if (TheResult == null)
+          {
+            final ScreenParams Solved = new ScreenParams();
+            System.arraycopy(Params.Values, 0, Solved.Values, 0, RuleGraph.NrFields);
+            Solved.Known = Params.Known;
+            TheRules.Graph.Solve(Solved);
+            final String[] Formatted = new String[RuleGraph.NrFields];
+            for (FieldName Name : RuleGraph.Fields)
+              {
+                if ((Solved.Computed & 1 << Name.ordinal()) != 0)
+                  {
+                    Formatted[Name.ordinal()] =
+                        TheRules.FormatField(Name, Solved.Values[Name.ordinal()], CurUnits);
+                  } /*if*/
+              } /*for*/
+            TheResult = new Result(Params.Known, Solved.Computed, Solved.Values, Formatted);
+            Put(Params, CurUnits, TheResult);
+          } /*if*/
+        return
+            TheResult;
+      } /*Solve*/
+
+    public void Clear()
+      /* removes all entries, without resetting the statistics. */
+      {
+        for (Stripe TheStripe : Stripes)
+          {
+            synchronized (TheStripe)
+              {
+                TheStripe.clear();
+              } /*synchronized*/
+          } /*for*/
+      } /*Clear*/
+
+    public static class Stats
+      {
+        public long Hits, Misses, Evictions;
+        public int Size; /* current number of entries */
+
+        public double HitRate()
+          {
+            return
+                Hits + Misses != 0 ? (double)Hits / (Hits + Misses) : 0.0;
+          } /*HitRate*/
+
+        @Override
+        public String toString()
+          {
+            return
+                String.format
+                  (
+                    "%d hits, %d misses (%.1f%% hit rate), %d evictions, %d entries",
+                    Hits,
+                    Misses,
+                    HitRate() * 100.0,
+                    Evictions,
+                    Size
+                  );
+          } /*toString*/
+
+      } /*Stats*/;
+
+    public Stats GetStats()
+      /* returns the totals over all stripes. Each stripe is counted
+        atomically, but not all of them at the same instant. */
+      {
+        final Stats Result = new Stats();
+        for (Stripe TheStripe : Stripes)
+          {
+            synchronized (TheStripe)
+              {
+                Result.Hits += TheStripe.Hits;
+                Result.Misses += TheStripe.Misses;
+                Result.Evictions += TheStripe.Evictions;
+                Result.Size += TheStripe.size();
+              } /*synchronized*/
+          } /*for*/
+        return
+            Result;
+      } /*GetStats*/
+
+  } /*SolveCache*/;